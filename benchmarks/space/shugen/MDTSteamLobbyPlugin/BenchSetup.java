@@ -0,0 +1,94 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import com.codedisaster.steamworks.SteamID;
+import mindustry.net.Net.NetProvider;
+import mindustry.net.NetConnection;
+import mindustry.net.Packets.StreamChunk;
+
+import java.util.Collections;
+
+/** Shared setup of the benchmarks: an {@link SNet} on a transport like {@link StubTransport}, whose packets go nowhere. */
+public class BenchSetup{
+    /** Native handle of the first simulated peer; account IDs count up from 1. */
+    public static final long firstPeer = 76561197960265729L;
+
+    public static SNet server(P2PTransport transport){
+        SNet net = new SNet(new NullProvider(), s -> transport);
+        net.handler = new NullHandler();
+        return net;
+    }
+
+    /** Registers {@code count} Steam connections with the server, like the receive loop would. */
+    public static void connect(SNet net, int count){
+        for(int i = 0; i < count; i++){
+            SteamID id = SteamID.createFromNativeHandle(firstPeer + i);
+            SNet.SteamConnection con = net.new SteamConnection(id);
+            net.connections.add(con);
+        }
+    }
+
+    public static StreamChunk chunk(int size){
+        StreamChunk chunk = new StreamChunk();
+        chunk.id = 1;
+        chunk.data = new byte[size];
+        for(int i = 0; i < size; i++){
+            chunk.data[i] = (byte)(i * 31);
+        }
+        return chunk;
+    }
+
+    static class NullHandler implements PacketHandler{
+        public long received;
+
+        @Override
+        public boolean server(){
+            return true;
+        }
+
+        @Override
+        public void handleServer(NetConnection con, Object object){
+            received++;
+        }
+
+        @Override
+        public void handleClient(Object object){
+            received++;
+        }
+    }
+
+    static class NullProvider implements NetProvider{
+        @Override
+        public void connectClient(String ip, int port, Runnable success){
+        }
+
+        @Override
+        public void sendClient(Object object, boolean reliable){
+        }
+
+        @Override
+        public void disconnectClient(){
+        }
+
+        @Override
+        public void discoverServers(arc.func.Cons<mindustry.net.Host> callback, Runnable done){
+            done.run();
+        }
+
+        @Override
+        public void pingHost(String address, int port, arc.func.Cons<mindustry.net.Host> valid, arc.func.Cons<Exception> failed){
+        }
+
+        @Override
+        public void hostServer(int port){
+        }
+
+        @Override
+        public Iterable<? extends NetConnection> getConnections(){
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void closeServer(){
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import mindustry.gen.EntitySnapshotCallPacket;
+import mindustry.net.NetConnection;
+import mindustry.net.Packets.StreamChunk;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One packet sent to every connection through {@link SNet#broadcast}, which Mindustry's Net.send is routed to,
+ * against sending it to each connection in a loop, which serializes it once per player.
+ * Snapshots are measured on their own: the game builds one for each player, so they are never shared.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BroadcastBenchmark{
+    @Param({"1", "32", "128"})
+    int players;
+    @Param({"64", "1100"})
+    int size;
+
+    final StubTransport transport = new StubTransport();
+    SNet net;
+    StreamChunk chunk;
+    byte[] snapshotData;
+
+    @Setup
+    public void setup(){
+        net = BenchSetup.server(transport);
+        BenchSetup.connect(net, players);
+        chunk = BenchSetup.chunk(size);
+        snapshotData = new byte[size];
+    }
+
+    @Benchmark
+    public long broadcast(){
+        net.broadcast(chunk, false, null);
+        net.flush();
+        return transport.sentBytes;
+    }
+
+    @Benchmark
+    public long perConnection(){
+        for(NetConnection con : net.getConnections()){
+            con.send(chunk, false);
+        }
+        net.flush();
+        return transport.sentBytes;
+    }
+
+    @Benchmark
+    public long snapshots(){
+        for(SNet.SteamConnection con : net.connections.steam()){
+            EntitySnapshotCallPacket snapshot = new EntitySnapshotCallPacket();
+            snapshot.amount = 1;
+            snapshot.data = snapshotData;
+            con.send(snapshot, false);
+        }
+        net.flush();
+        return transport.sentBytes;
+    }
+}
@@ -0,0 +1,124 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Strings;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * CPU cost of {@link Compressor} per pass over a set of packets; the bytes it saves on them are logged at setup.
+ * Pass a capture with {@code -Pcapture=<file>}: every other packet trains the dictionary and the rest are measured,
+ * so the dictionary never sees the packets it is measured on. Without one, synthetic packets that share a layout are used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CompressionBenchmark{
+    /** Packets measured per pass. */
+    static final int measured = 2000;
+
+    @Param({""})
+    String capture;
+
+    @Param({"1", "4", "9"})
+    int level;
+
+    @Param({"false", "true"})
+    boolean dictionary;
+
+    final BufferArena direct = new BufferArena(true), heap = new BufferArena(false);
+    Compressor compressor, decompressor;
+    ByteBuffer[] packets;
+    /** Compressed copies of the packets that compress, for {@link #decompress()}. */
+    ByteBuffer[] compressed;
+
+    @Setup
+    public void setup() throws IOException{
+        SConfig.compressionLevel = level;
+        Seq<byte[]> all = capture.isEmpty() ? synthetic() : Capture.packets(new File(capture), Compressor.trainLimit * 2L);
+
+        Seq<byte[]> training = new Seq<>(), test = new Seq<>();
+        for(int i = 0; i < all.size; i++){
+            (i % 2 == 0 ? training : test).add(all.get(i));
+        }
+        Compressor.setDictionary(dictionary ? Compressor.train(training, Compressor.defaultDictionarySize) : new byte[0]);
+
+        compressor = new Compressor(direct);
+        decompressor = new Compressor(heap);
+        packets = new ByteBuffer[Math.min(test.size, measured)];
+        Seq<ByteBuffer> packed = new Seq<>();
+        long raw = 0, sent = 0;
+        for(int i = 0; i < packets.length; i++){
+            byte[] packet = test.get(i * test.size / packets.length);
+            packets[i] = ByteBuffer.allocateDirect(packet.length);
+            packets[i].put(packet).flip();
+
+            ByteBuffer result = compressor.compress(packets[i]);
+            raw += packet.length;
+            sent += result == null ? packet.length : result.remaining();
+            if(result != null){
+                ByteBuffer copy = ByteBuffer.allocate(result.remaining());
+                copy.put(result).flip();
+                packed.add(copy);
+                direct.release(result);
+            }
+        }
+        compressed = packed.toArray(ByteBuffer.class);
+
+        Log.info("Level @, @: @ packets, @ bytes sent as @ (@% saved), @ compressed.", level, dictionary ? "trained dictionary" : "no dictionary",
+            packets.length, raw, sent, Strings.fixed(100f * (raw - sent) / Math.max(raw, 1), 1), compressed.length);
+    }
+
+    /** Packets of a few layouts with small varying fields, roughly like entity and state snapshots. */
+    Seq<byte[]> synthetic(){
+        Random random = new Random(0);
+        Seq<byte[]> packets = new Seq<>();
+        for(int i = 0; i < measured * 4; i++){
+            int layout = i % 5;
+            byte[] packet = new byte[64 + layout * 60 + random.nextInt(40)];
+            for(int j = 0; j < packet.length; j++){
+                packet[j] = (byte)(j % 13 == 0 ? random.nextInt(256) : (j * (layout + 3) + j / 24) % 48);
+            }
+            packet[0] = (byte)layout;
+            packets.add(packet);
+        }
+        return packets;
+    }
+
+    @Benchmark
+    public long compress(){
+        long sent = 0;
+        for(ByteBuffer packet : packets){
+            ByteBuffer result = compressor.compress(packet);
+            if(result == null){
+                sent += packet.remaining();
+            }else{
+                sent += result.remaining();
+                direct.release(result);
+            }
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public long decompress() throws DataFormatException{
+        long size = 0;
+        for(ByteBuffer packet : compressed){
+            packet.position(0);
+            ByteBuffer result = decompressor.decompress(packet);
+            size += result.remaining();
+            heap.release(result);
+        }
+        return size;
+    }
+}
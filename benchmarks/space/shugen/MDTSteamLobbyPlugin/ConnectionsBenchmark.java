@@ -0,0 +1,34 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import mindustry.net.NetConnection;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** {@link SNet#getConnections()}, which Mindustry iterates on every broadcast. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ConnectionsBenchmark{
+    @Param({"1", "32", "128"})
+    int players;
+
+    SNet net;
+
+    @Setup
+    public void setup(){
+        net = BenchSetup.server(new StubTransport());
+        BenchSetup.connect(net, players);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole hole){
+        for(NetConnection con : net.getConnections()){
+            hole.consume(con);
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.ApplicationListener;
+import arc.backend.headless.HeadlessApplication;
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.*;
+import com.codedisaster.steamworks.SteamMatchmaking.ChatEntryType;
+import com.codedisaster.steamworks.SteamMatchmaking.ChatMemberStateChange;
+import com.codedisaster.steamworks.SteamMatchmaking.ChatRoomEnterResponse;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import com.codedisaster.steamworks.SteamNetworking.P2PSessionError;
+import mindustry.Vars;
+import mindustry.gen.EntitySnapshotCallPacket;
+import mindustry.net.ArcNetProvider.PacketSerializer;
+import mindustry.net.Net;
+import mindustry.net.NetConnection;
+import mindustry.net.Packets.ConnectPacket;
+import mindustry.net.Packets.StreamBegin;
+import mindustry.net.Packets.StreamChunk;
+import mindustry.net.Packets.WorldStream;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Gateway mode on one machine: a {@link Gateway} on a {@link LoopbackTransport.Hub} relays Steam clients to
+ * {@link #backendCount} backends listening with {@link GatewayTransport} on 127.0.0.1.
+ * Clients join the lobbies of the backends and receive a world, then inputs and snapshots are relayed both ways.
+ * Then the first backend goes away: its clients have to lose their session and the others not. It comes back on the same
+ * port, has to get its old lobby back once the gateway relinks, and its clients rejoin and receive the world again.
+ * Runs on the thread of a headless application, like a server, and exits with 1 if a step fails or times out.
+ * {@code ./gradlew gateway -Pclients=8 -Pport=6590}
+ */
+public class GatewayTest implements ApplicationListener{
+    static final int backendCount = 2, lobbyLimit = 16, worldSize = 64 * 1024;
+    /** Longer than the {@link Gateway#retryInterval} a relink waits for. */
+    static final long stepTimeout = 20_000;
+    /** Ticks inputs and snapshots are relayed for, and between two of them. */
+    static final int relayTicks = 180, inputInterval = 5, snapshotInterval = 12, snapshotSize = 256;
+
+    final LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+    final int clientCount, basePort;
+    final byte[] world = new byte[worldSize];
+    final Backend[] backends = new Backend[backendCount];
+    final Seq<Client> clients = new Seq<>();
+    SNet gateway;
+    LoopbackTransport gatewayTransport;
+
+    Step step = Step.lobbies;
+    long stepStart;
+    int ticks;
+    /** Lobby of the backend that went away, which it has to get back. */
+    SteamID droppedLobby;
+
+    GatewayTest(int clientCount, int basePort){
+        this.clientCount = clientCount;
+        this.basePort = basePort;
+        for(int i = 0; i < world.length; i++){
+            world[i] = (byte)(i * 31 + i / 7);
+        }
+    }
+
+    public static void main(String[] args){
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 6590;
+
+        //Core.app runs the callbacks GatewayTransport posts; everything else runs in update()
+        new HeadlessApplication(new GatewayTest(clients, port), e -> {
+            Log.err(e);
+            System.exit(1);
+        });
+    }
+
+    @Override
+    public void init(){
+        SConfig.floodSessions = 0;
+        SConfig.ioThread = false;
+        SConfig.gatewaySecret = "gateway-test";
+        //nothing is hosted, so backends only log the lobbies they are given instead of publishing data to them
+        Vars.net = new Net(new BenchSetup.NullProvider());
+
+        StringBuilder addresses = new StringBuilder();
+        for(int i = 0; i < backendCount; i++){
+            addresses.append(i == 0 ? "" : ",").append("127.0.0.1:").append(basePort + i);
+        }
+        SConfig.gatewayBackends = addresses.toString();
+        gateway = new SNet(new BenchSetup.NullProvider(), s -> new LoopbackTransport(hub, s));
+        gateway.handler = new BenchSetup.NullHandler();
+        gatewayTransport = (LoopbackTransport)gateway.transport;
+        SConfig.gatewayBackends = "";
+
+        for(int i = 0; i < backendCount; i++){
+            backends[i] = new Backend(basePort + i);
+        }
+        for(int i = 0; i < clientCount; i++){
+            clients.add(new Client(backends[i % backendCount]));
+        }
+        Log.info("Gateway for @ backends on ports @ to @, @ clients.", backendCount, basePort, basePort + backendCount - 1, clientCount);
+        stepStart = Time.millis();
+    }
+
+    @Override
+    public void update(){
+        gatewayTransport.runCallbacks();
+        for(Client client : clients){
+            client.update();
+        }
+        gateway.pump.update();
+        gateway.gateway.update();
+        for(Backend backend : backends){
+            if(backend != null) backend.update();
+        }
+        ticks++;
+
+        if(Time.timeSinceMillis(stepStart) > stepTimeout){
+            Log.err("Timed out waiting for @.", step);
+            finish(false);
+            return;
+        }
+
+        switch(step){
+            case lobbies:
+                for(Backend backend : backends){
+                    if(backend.transport.lobby == null) return;
+                }
+                for(Client client : clients){
+                    client.join();
+                }
+                next(Step.worlds);
+                break;
+            case worlds:
+                if(clients.find(c -> !c.hasWorld()) != null) return;
+                next(Step.relay);
+                break;
+            case relay:
+                if(ticks % inputInterval == 0){
+                    for(Client client : clients){
+                        client.input();
+                    }
+                }
+                if(ticks % snapshotInterval == 0){
+                    for(Backend backend : backends){
+                        backend.snapshots();
+                    }
+                }
+                if(ticks < relayTicks) return;
+
+                for(Backend backend : backends){
+                    if(backend.inputs == 0){
+                        Log.err("Backend @ got no inputs.", backend.port);
+                        finish(false);
+                        return;
+                    }
+                }
+                if(clients.find(c -> c.snapshots == 0) != null){
+                    Log.err("A client got no snapshots.");
+                    finish(false);
+                    return;
+                }
+
+                droppedLobby = backends[0].transport.lobby;
+                backends[0].dispose();
+                backends[0] = null;
+                Log.info("Backend @ went away.", basePort);
+                next(Step.dropped);
+                break;
+            case dropped:
+                if(clients.find(c -> c.backend.port == basePort && !c.lost) != null) return;
+                if(clients.find(c -> c.backend.port != basePort && c.lost) != null){
+                    Log.err("A client of another backend lost its session.");
+                    finish(false);
+                    return;
+                }
+                next(Step.restart);
+                break;
+            case restart:
+                //the old socket may take a moment to let go of the port
+                try{
+                    backends[0] = new Backend(basePort);
+                }catch(RuntimeException e){
+                    return;
+                }
+                next(Step.relinked);
+                break;
+            case relinked:
+                SteamID lobby = backends[0].transport.lobby;
+                if(lobby == null) return;
+                if(!lobby.equals(droppedLobby)){
+                    Log.err("Backend @ got a new lobby instead of its old one.", basePort);
+                    finish(false);
+                    return;
+                }
+
+                for(Client client : clients){
+                    if(client.backend.port != basePort) continue;
+                    client.backend = backends[0];
+                    client.leave();
+                    client.join();
+                }
+                next(Step.rejoined);
+                break;
+            case rejoined:
+                if(clients.find(c -> !c.hasWorld()) != null) return;
+                finish(true);
+                break;
+        }
+    }
+
+    void next(Step next){
+        Log.info("Step @ done in @ ms.", step, Time.timeSinceMillis(stepStart));
+        step = next;
+        stepStart = Time.millis();
+        ticks = 0;
+    }
+
+    void finish(boolean ok){
+        Log.info("Loopback: @ messages, @ dropped", hub.sent.get(), hub.dropped.get());
+        for(Backend backend : backends){
+            if(backend == null) continue;
+            Log.info("Backend @: @ inputs, @ joins.", backend.port, backend.inputs, backend.joins);
+            backend.dispose();
+        }
+        int snapshots = 0;
+        for(Client client : clients){
+            snapshots += client.snapshots;
+        }
+        Log.info("Clients: @ snapshots received.", snapshots);
+        Log.info(ok ? "Gateway test passed." : "Gateway test failed.");
+        System.exit(ok ? 0 : 1);
+    }
+
+    enum Step{
+        /** Every backend got a lobby from the gateway. */
+        lobbies,
+        /** Every client joined and received the world. */
+        worlds,
+        /** Inputs and snapshots went through in both directions. */
+        relay,
+        /** The clients of the first backend lost their session, and only those. */
+        dropped,
+        /** The first backend listens again. */
+        restart,
+        /** The gateway relinked to it and gave it its old lobby. */
+        relinked,
+        /** Its clients joined it again and received the world. */
+        rejoined
+    }
+
+    /** A backend server without a game: answers connects with a world stream and counts inputs. */
+    class Backend implements PacketHandler{
+        final int port;
+        final SNet net;
+        final GatewayTransport transport;
+        int inputs, joins;
+
+        Backend(int port){
+            this.port = port;
+            net = new SNet(new BenchSetup.NullProvider(), s -> new GatewayTransport(s, "127.0.0.1", port));
+            net.handler = this;
+            transport = (GatewayTransport)net.transport;
+            //asked for again once a gateway authenticated
+            transport.createLobby(LobbyType.Public, lobbyLimit);
+        }
+
+        void update(){
+            net.pump.update();
+        }
+
+        /** Sends a snapshot to every player, one packet each like the game's entity snapshots. */
+        void snapshots(){
+            for(SNet.SteamConnection con : net.connections.steam()){
+                if(!con.hasConnected) continue;
+
+                EntitySnapshotCallPacket snapshot = new EntitySnapshotCallPacket();
+                snapshot.data = new byte[snapshotSize];
+                con.send(snapshot, false);
+            }
+        }
+
+        void dispose(){
+            transport.dispose();
+        }
+
+        @Override
+        public boolean server(){
+            return true;
+        }
+
+        @Override
+        public void handleServer(NetConnection con, Object object){
+            if(object instanceof ConnectPacket){
+                con.hasConnected = true;
+                joins++;
+                WorldStream stream = new WorldStream();
+                stream.stream = new ByteArrayInputStream(world);
+                con.sendStream(stream);
+            }else if(object instanceof StreamChunk && ((StreamChunk)object).id == LoadTest.syncId){
+                inputs++;
+            }
+        }
+
+        @Override
+        public void handleClient(Object object){
+        }
+    }
+
+    /** A Steam user that enters the lobby of one backend and talks to it through the gateway. */
+    class Client implements SteamNetworkingCallback, SteamMatchmakingCallback{
+        final LoopbackTransport transport = new LoopbackTransport(hub, this, this, null);
+        final PacketSerializer serializer = new PacketSerializer();
+        final ByteBuffer read = ByteBuffer.allocate(65536), write = ByteBuffer.allocate(16384);
+        final StreamChunk input = new StreamChunk();
+        Backend backend;
+        SteamID lobby;
+        /** Whether the gateway dropped the session. */
+        boolean lost;
+        int worldTotal = -1, worldReceived, snapshots;
+
+        Client(Backend backend){
+            this.backend = backend;
+            input.id = LoadTest.syncId;
+            input.data = new byte[LoadTest.inputSize];
+        }
+
+        /** Enters the lobby of its backend, which routes it there, and connects. */
+        void join(){
+            lobby = backend.transport.lobby;
+            lost = false;
+            worldTotal = -1;
+            worldReceived = 0;
+            transport.joinLobby(lobby);
+            send(LoadTest.connect(transport.id), true);
+        }
+
+        void leave(){
+            transport.leaveLobby(lobby);
+        }
+
+        boolean hasWorld(){
+            return worldTotal >= 0 && worldReceived >= worldTotal;
+        }
+
+        void update(){
+            transport.runCallbacks();
+            try{
+                LoadTest.receive(transport, read, serializer, this::handle);
+            }catch(SteamException e){
+                Log.err("Client @ failed to receive.", transport.id.getAccountID());
+                Log.err(e);
+            }
+        }
+
+        void input(){
+            if(hasWorld()) send(input, false);
+        }
+
+        void send(Object packet, boolean reliable){
+            write.clear();
+            serializer.write(write, packet);
+            write.flip();
+            try{
+                //the gateway holds every session, whichever backend the client plays on
+                transport.send(gatewayTransport.id, write, reliable ? P2PSend.Reliable : P2PSend.UnreliableNoDelay, Channels.control);
+            }catch(SteamException e){
+                Log.err("Client @ failed to send.", transport.id.getAccountID());
+                Log.err(e);
+            }
+        }
+
+        void handle(Object packet){
+            if(packet instanceof EntitySnapshotCallPacket){
+                snapshots++;
+            }else if(packet instanceof StreamBegin){
+                worldTotal = ((StreamBegin)packet).total;
+            }else if(packet instanceof StreamChunk && !hasWorld()){
+                worldReceived += ((StreamChunk)packet).data.length;
+            }
+        }
+
+        @Override
+        public void onP2PSessionRequest(SteamID id){
+            if(id.equals(gatewayTransport.id)) transport.acceptSession(id);
+        }
+
+        @Override
+        public void onP2PSessionConnectFail(SteamID id, P2PSessionError error){
+            if(id.equals(gatewayTransport.id)) lost = true;
+        }
+
+        @Override
+        public void onLobbyEnter(SteamID lobby, int chatPermissions, boolean blocked, ChatRoomEnterResponse response){
+            if(response != ChatRoomEnterResponse.Success) Log.err("Client @ could not enter lobby @: @", transport.id.getAccountID(), lobby.getAccountID(), response);
+        }
+
+        @Override
+        public void onFavoritesListChanged(int ip, int queryPort, int connPort, int appID, int flags, boolean add, int accountID){
+        }
+
+        @Override
+        public void onLobbyInvite(SteamID user, SteamID lobby, long gameID){
+        }
+
+        @Override
+        public void onLobbyDataUpdate(SteamID lobby, SteamID member, boolean success){
+        }
+
+        @Override
+        public void onLobbyChatUpdate(SteamID lobby, SteamID who, SteamID changer, ChatMemberStateChange change){
+        }
+
+        @Override
+        public void onLobbyChatMessage(SteamID lobby, SteamID user, ChatEntryType type, int chatID){
+        }
+
+        @Override
+        public void onLobbyGameCreated(SteamID lobby, SteamID gameServer, int ip, short port){
+        }
+
+        @Override
+        public void onLobbyMatchList(int matches){
+        }
+
+        @Override
+        public void onLobbyKicked(SteamID lobby, SteamID admin, boolean disconnected){
+        }
+
+        @Override
+        public void onLobbyCreated(SteamResult result, SteamID lobby){
+        }
+
+        @Override
+        public void onFavoritesListAccountsUpdated(SteamResult result){
+        }
+    }
+}
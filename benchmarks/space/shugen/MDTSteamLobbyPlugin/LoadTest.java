@@ -0,0 +1,327 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.func.Cons;
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamException;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import com.codedisaster.steamworks.SteamNetworking.P2PSessionError;
+import com.codedisaster.steamworks.SteamNetworkingCallback;
+import mindustry.gen.EntitySnapshotCallPacket;
+import mindustry.net.ArcNetProvider.PacketSerializer;
+import mindustry.net.NetConnection;
+import mindustry.net.Packets.ConnectPacket;
+import mindustry.net.Packets.StreamBegin;
+import mindustry.net.Packets.StreamChunk;
+import mindustry.net.Packets.WorldStream;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthetic clients against a server on a {@link LoopbackTransport.Hub}, to see where {@link SNet} saturates.
+ * Every client runs on its own virtual thread (platform threads before Java 21), connects, receives a world
+ * and then sends input at {@link #inputRate} while the server ticks at 60 per second and sends snapshots to everyone.
+ * The server has no game: its handler answers connects with a world stream and counts the rest.
+ * Snapshots are {@link EntitySnapshotCallPacket}s with a synthetic payload, written for each player like the game does,
+ * so they take the same budgeted path through {@link SendScheduler} as real ones.
+ * Input packets are {@link StreamChunk}s of {@link #inputSize} bytes, standing in for client snapshots that need a loaded world to be written.
+ * {@code ./gradlew loadtest -Pclients=1000 -Pseconds=60 -Pworld=512}
+ */
+public class LoadTest{
+    static final long tickNanos = 1_000_000_000L / 60;
+    /** Input packets per second and client, like the client sync rate. */
+    static final int inputRate = 12, inputSize = 64;
+    /** Ticks between two server snapshots, and the size of their payload. */
+    static final int snapshotInterval = 12, snapshotSize = 512;
+    /** Stream ID of chunks that are inputs rather than world data. */
+    static final int syncId = -1;
+
+    final LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+    final SNet server;
+    final LoopbackTransport serverTransport;
+    final SteamID host;
+    final LoadServer handler = new LoadServer();
+    final byte[] world;
+
+    final Histogram tickTime = new Histogram(), joinTime = new Histogram(), inputLatency = new Histogram(), snapshotLatency = new Histogram();
+    final AtomicInteger joined = new AtomicInteger(), failed = new AtomicInteger();
+    final AtomicLong inputs = new AtomicLong(), snapshots = new AtomicLong();
+    volatile boolean running = true;
+
+    LoadTest(int worldSize){
+        SConfig.floodSessions = 0;
+        server = new SNet(new BenchSetup.NullProvider(), s -> new LoopbackTransport(hub, s));
+        server.handler = handler;
+        serverTransport = (LoopbackTransport)server.transport;
+        host = serverTransport.id;
+
+        world = new byte[worldSize];
+        for(int i = 0; i < world.length; i++){
+            world[i] = (byte)(i * 31 + i / 7);
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 250;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int worldSize = (args.length > 2 ? Integer.parseInt(args[2]) : 256) * 1024;
+
+        if(!new LoadTest(worldSize).run(clients, seconds)) System.exit(1);
+    }
+
+    /** @return false if no client got to play, so nothing was measured. */
+    boolean run(int clients, int seconds) throws InterruptedException{
+        ExecutorService threads = threads();
+        Log.info("@ clients for @ seconds, @ KB worlds.", clients, seconds, world.length / 1024);
+
+        //clients join over the first quarter of the run, not all in the same tick
+        long rampNanos = TimeUnit.SECONDS.toNanos(seconds) / 4 / Math.max(clients, 1);
+        long start = Time.nanos(), end = start + TimeUnit.SECONDS.toNanos(seconds), nextClient = start;
+        int started = 0;
+        long ticks = 0;
+
+        while(Time.nanos() < end){
+            long tick = Time.nanos();
+            while(started < clients && tick >= nextClient){
+                threads.execute(new Client());
+                started++;
+                nextClient += rampNanos;
+            }
+
+            //session requests and lost sessions arrive here, like Steam callbacks on the game thread
+            serverTransport.runCallbacks();
+            server.pump.update();
+            server.monitor.update();
+            if(++ticks % snapshotInterval == 0) broadcast();
+            tickTime.record(Time.timeSinceNanos(tick));
+
+            long left = tickNanos - Time.timeSinceNanos(tick);
+            if(left > 0) LockSupport.parkNanos(left);
+        }
+
+        running = false;
+        threads.shutdown();
+        threads.awaitTermination(10, TimeUnit.SECONDS);
+        return report(seconds);
+    }
+
+    /** Sends a timestamped snapshot to every client that has its world, one packet per player like the game's entity snapshots. */
+    void broadcast(){
+        for(SNet.SteamConnection con : server.connections.steam()){
+            if(!con.hasConnected) continue;
+
+            EntitySnapshotCallPacket snapshot = new EntitySnapshotCallPacket();
+            snapshot.data = new byte[snapshotSize];
+            ByteBuffer.wrap(snapshot.data).putLong(Time.nanos());
+            con.send(snapshot, false);
+        }
+    }
+
+    /** @return the packet a client named after its Steam ID joins with. */
+    static ConnectPacket connect(SteamID id){
+        ConnectPacket connect = new ConnectPacket();
+        connect.name = "load" + id.getAccountID();
+        //the UUID is written as the 8 bytes its base64 decodes to
+        connect.uuid = Base64.getEncoder().encodeToString(ByteBuffer.allocate(8).putLong(id.handle()).array());
+        connect.usid = Long.toString(id.handle(), 16);
+        connect.versionType = "official";
+        connect.locale = "en";
+        connect.mods = new Seq<>();
+        return connect;
+    }
+
+    /** Reads every message waiting for a client and decodes it like a real client, unpacking batches. */
+    static void receive(P2PTransport transport, ByteBuffer read, PacketSerializer serializer, Cons<Object> handler) throws SteamException{
+        for(int channel = 0; channel < Channels.count; channel++){
+            while(transport.available(channel) != 0){
+                read.clear();
+                transport.read(read, channel);
+                if(read.remaining() > 0 && read.get(read.position()) == Frames.batch){
+                    read.get();
+                    while(read.remaining() >= Frames.lengthSize){
+                        int end = (read.getShort() & 0xffff) + read.position();
+                        int limit = read.limit();
+                        read.limit(end);
+                        handler.get(serializer.read(read));
+                        read.limit(limit).position(end);
+                    }
+                }else{
+                    handler.get(serializer.read(read));
+                }
+            }
+        }
+    }
+
+    /** One thread per client: virtual threads if the JVM has them. */
+    static ExecutorService threads(){
+        try{
+            ExecutorService executor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            Log.info("Clients run on virtual threads.");
+            return executor;
+        }catch(ReflectiveOperationException e){
+            Log.info("No virtual threads before Java 21, clients run on platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    boolean report(int seconds){
+        Log.info("Joined: @ clients, @ failed, join time @", joined.get(), failed.get(), joinTime.summary());
+        Log.info("Server tick: @", tickTime.summary());
+        Log.info("Input latency: @, @ inputs/s", inputLatency.summary(), inputs.get() / seconds);
+        Log.info("Snapshot latency: @, @ snapshots/s received", snapshotLatency.summary(), snapshots.get() / seconds);
+        Log.info("Loopback: @ messages, @ dropped", hub.sent.get(), hub.dropped.get());
+        server.stats.print(server.connections.steam());
+
+        if(joined.get() == 0){
+            Log.err("No client joined, this run measured nothing.");
+            return false;
+        }
+        return true;
+    }
+
+    /** Server side: starts the world stream on connect and measures how late inputs arrive. */
+    class LoadServer implements PacketHandler{
+        @Override
+        public boolean server(){
+            return true;
+        }
+
+        @Override
+        public void handleServer(NetConnection con, Object object){
+            if(object instanceof ConnectPacket){
+                con.hasConnected = true;
+                WorldStream stream = new WorldStream();
+                stream.stream = new ByteArrayInputStream(world);
+                con.sendStream(stream);
+            }else if(object instanceof StreamChunk && ((StreamChunk)object).id == syncId){
+                inputLatency.record(Time.nanos() - ByteBuffer.wrap(((StreamChunk)object).data).getLong());
+                inputs.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void handleClient(Object object){
+        }
+    }
+
+    /** A Steam user that joins the server and plays, using the same serializer and framing as a real client. */
+    class Client implements Runnable, SteamNetworkingCallback{
+        final LoopbackTransport transport = new LoopbackTransport(hub, this, null, null);
+        final PacketSerializer serializer = new PacketSerializer();
+        /** Large enough for any batch or chunk the server sends. */
+        final ByteBuffer read = ByteBuffer.allocate(65536), write = ByteBuffer.allocate(16384);
+        final StreamChunk input = new StreamChunk();
+        final long start = Time.nanos();
+        int worldTotal = -1, worldReceived;
+
+        @Override
+        public void run(){
+            try{
+                send(connect(transport.id), true);
+
+                input.id = syncId;
+                input.data = new byte[inputSize];
+                long nextInput = Time.nanos();
+                while(running){
+                    transport.runCallbacks();
+                    receive(transport, read, serializer, this::handle);
+                    if(worldTotal >= 0 && worldReceived >= worldTotal && Time.nanos() >= nextInput){
+                        ByteBuffer.wrap(input.data).putLong(Time.nanos());
+                        send(input, false);
+                        nextInput += 1_000_000_000L / inputRate;
+                    }
+                    LockSupport.parkNanos(1_000_000L);
+                }
+            }catch(Exception e){
+                failed.incrementAndGet();
+                Log.err("Client @ failed.", transport.id.getAccountID());
+                Log.err(e);
+            }finally{
+                transport.dispose();
+            }
+        }
+
+        void send(Object packet, boolean reliable) throws SteamException{
+            write.clear();
+            serializer.write(write, packet);
+            write.flip();
+            transport.send(host, write, reliable ? P2PSend.Reliable : P2PSend.UnreliableNoDelay, Channels.control);
+        }
+
+        void handle(Object packet){
+            if(packet instanceof EntitySnapshotCallPacket){
+                EntitySnapshotCallPacket snapshot = (EntitySnapshotCallPacket)packet;
+                //the fields are only decoded once the packet is handled
+                snapshot.handled();
+                snapshotLatency.record(Time.nanos() - ByteBuffer.wrap(snapshot.data).getLong());
+                snapshots.incrementAndGet();
+            }else if(packet instanceof StreamBegin){
+                worldTotal = ((StreamBegin)packet).total;
+            }else if(packet instanceof StreamChunk){
+                StreamChunk chunk = (StreamChunk)packet;
+                if(worldTotal >= 0 && worldReceived < worldTotal){
+                    worldReceived += chunk.data.length;
+                    if(worldReceived >= worldTotal){
+                        joinTime.record(Time.timeSinceNanos(start));
+                        joined.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        /** Only the server ever talks to a client. */
+        @Override
+        public void onP2PSessionRequest(SteamID id){
+            if(id.equals(host)) transport.acceptSession(id);
+        }
+
+        @Override
+        public void onP2PSessionConnectFail(SteamID id, P2PSessionError error){
+            if(id.equals(host)) Log.warn("Client @ lost the server: @", transport.id.getAccountID(), error);
+        }
+    }
+
+    /** Durations in buckets that grow by 5%, from a microsecond to a few minutes; safe to record from any thread. */
+    static class Histogram{
+        static final double growth = Math.log(1.05);
+        static final int buckets = 400;
+
+        final AtomicLongArray counts = new AtomicLongArray(buckets);
+        final AtomicLong total = new AtomicLong(), max = new AtomicLong();
+
+        void record(long nanos){
+            double micros = Math.max(nanos / 1000.0, 1.0);
+            counts.incrementAndGet(Math.min((int)(Math.log(micros) / growth), buckets - 1));
+            total.incrementAndGet();
+            long previous;
+            while(nanos > (previous = max.get()) && !max.compareAndSet(previous, nanos));
+        }
+
+        /** @return the upper bound of the bucket holding the given quantile, in milliseconds. */
+        double percentile(double quantile){
+            long target = (long)Math.ceil(total.get() * quantile), seen = 0;
+            for(int i = 0; i < buckets; i++){
+                seen += counts.get(i);
+                if(seen >= target && seen > 0) return Math.exp((i + 1) * growth) / 1000.0;
+            }
+            return max.get() / 1_000_000.0;
+        }
+
+        String summary(){
+            if(total.get() == 0) return "no samples";
+            return String.format("p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms (%d samples)",
+                percentile(0.5), percentile(0.9), percentile(0.99), max.get() / 1_000_000.0, total.get());
+        }
+    }
+}
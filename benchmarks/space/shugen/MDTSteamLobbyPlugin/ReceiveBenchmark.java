@@ -0,0 +1,63 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** One {@link ReceivePump#update()} tick, from transport read to {@link PacketHandler}. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReceiveBenchmark{
+    static final int packetsPerTick = 64, packetsPerBatch = 8;
+
+    @Param({"64", "512"})
+    int size;
+    @Param({"false", "true"})
+    boolean batched;
+
+    final StubTransport transport = new StubTransport();
+    SNet net;
+    byte[] message;
+
+    @Setup
+    public void setup(){
+        SConfig.receivePacketBudget = Integer.MAX_VALUE;
+        SConfig.receiveTimeBudget = Integer.MAX_VALUE / 1000;
+        //one simulated peer sends far more than any real client
+        SConfig.floodPackets = 0;
+        SConfig.floodBytes = 0;
+
+        net = BenchSetup.server(transport);
+        BenchSetup.connect(net, 1);
+
+        ByteBuffer serialized = net.serialize(BenchSetup.chunk(size));
+        int length = serialized.remaining();
+        byte[] packet = new byte[length];
+        serialized.get(packet);
+        net.buffers.release(serialized);
+
+        if(batched){
+            ByteBuffer batch = ByteBuffer.allocate(1 + packetsPerBatch * (Frames.lengthSize + length));
+            batch.put(Frames.batch);
+            for(int i = 0; i < packetsPerBatch; i++){
+                batch.putShort((short)length);
+                batch.put(packet);
+            }
+            message = batch.array();
+        }else{
+            message = packet;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(packetsPerTick)
+    public void receiveTick(){
+        transport.prepare(message, BenchSetup.firstPeer, Channels.control, batched ? packetsPerTick / packetsPerBatch : packetsPerTick);
+        net.pump.update();
+    }
+}
@@ -0,0 +1,44 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.util.Log;
+import arc.util.Time;
+
+import java.io.File;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link Capture} back into a server at the speed it was recorded, ticking like the game loop,
+ * for profiling real sessions. {@code ./gradlew replay -Pcapture=<file>}; add {@code -Pfast} to skip the waiting.
+ */
+public class Replay{
+    /** Length of one game tick. */
+    static final long tickNanos = 1_000_000_000L / 60;
+
+    public static void main(String[] args) throws Exception{
+        if(args.length == 0){
+            Log.err("Usage: Replay <capture> [fast]");
+            return;
+        }
+        boolean realtime = args.length < 2 || !args[1].equals("fast");
+        SConfig.floodPackets = 0;
+        SConfig.floodBytes = 0;
+
+        ReplayTransport transport = new ReplayTransport(new File(args[0]), realtime);
+        SNet net = BenchSetup.server(transport);
+
+        long start = Time.nanos(), ticks = 0;
+        while(!transport.finished()){
+            long tick = Time.nanos();
+            net.pump.update();
+            ticks++;
+
+            if(realtime){
+                long left = tickNanos - Time.timeSinceNanos(tick);
+                if(left > 0) LockSupport.parkNanos(left);
+            }
+        }
+
+        Log.info("Replayed @ messages in @ ticks, @ ms.", transport.replayed, ticks, Time.timeSinceNanos(start) / 1_000_000);
+        net.stats.print(net.connections.steam());
+    }
+}
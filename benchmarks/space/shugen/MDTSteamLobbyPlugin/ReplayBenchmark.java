@@ -0,0 +1,68 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole {@link Capture} replayed as fast as possible, from transport read to {@link PacketHandler}.
+ * Pass a recorded one with {@code -Pcapture=<file>}; otherwise a synthetic capture of {@link #peers} peers is used.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReplayBenchmark{
+    static final int peers = 16, messagesPerPeer = 1000;
+
+    @Param({""})
+    String capture;
+
+    ReplayTransport transport;
+    SNet net;
+
+    @Setup
+    public void setup() throws IOException{
+        SConfig.receivePacketBudget = Integer.MAX_VALUE;
+        SConfig.receiveTimeBudget = Integer.MAX_VALUE / 1000;
+        //a capture may hold more traffic per peer than the limits allow, it was let in when it was recorded
+        SConfig.floodPackets = 0;
+        SConfig.floodBytes = 0;
+
+        File file = capture.isEmpty() ? synthetic() : new File(capture);
+        transport = new ReplayTransport(file, false);
+        net = BenchSetup.server(transport);
+    }
+
+    /** Writes a capture of chunk packets of mixed sizes, sent round-robin by every peer. */
+    File synthetic() throws IOException{
+        File file = File.createTempFile("replay", ".cap");
+        file.deleteOnExit();
+
+        SNet encoder = BenchSetup.server(new StubTransport());
+        Capture writer = new Capture(file, Long.MAX_VALUE);
+        for(int i = 0; i < messagesPerPeer; i++){
+            ByteBuffer packet = encoder.serialize(BenchSetup.chunk(32 + (i * 97) % 1024));
+            for(int peer = 0; peer < peers; peer++){
+                writer.record(Capture.inbound, BenchSetup.firstPeer + peer, Channels.control, packet);
+            }
+            encoder.buffers.release(packet);
+        }
+        writer.close();
+        return file;
+    }
+
+    @Benchmark
+    public long replay(){
+        transport.rewind();
+        while(!transport.finished()){
+            net.pump.update();
+        }
+        return transport.replayed;
+    }
+}
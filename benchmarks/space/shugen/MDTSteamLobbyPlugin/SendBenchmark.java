@@ -0,0 +1,49 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import mindustry.net.Packets.StreamChunk;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/** {@link SNet.SteamConnection#send} including send mode selection, batching and the end-of-tick flush. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SendBenchmark{
+    static final int packetsPerTick = 32;
+
+    /** The largest size is past the old fixed 16 KB write buffer, so it goes through a bigger pooled one. */
+    @Param({"64", "1100", "24000"})
+    int size;
+    @Param({"false", "true"})
+    boolean reliable;
+    @Param({"false", "true"})
+    boolean batching;
+
+    final StubTransport transport = new StubTransport();
+    SNet net;
+    SNet.SteamConnection con;
+    StreamChunk chunk;
+
+    @Setup
+    public void setup(){
+        net = BenchSetup.server(transport);
+        BenchSetup.connect(net, 1);
+        con = net.connections.steam()[0];
+        con.features = batching ? Frames.featureBatch : 0;
+        chunk = BenchSetup.chunk(size);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(packetsPerTick)
+    public long sendTick(){
+        for(int i = 0; i < packetsPerTick; i++){
+            con.send(chunk, reliable);
+        }
+        net.flush();
+        return transport.sentMessages;
+    }
+}
@@ -0,0 +1,51 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import mindustry.net.ArcNetProvider.PacketSerializer;
+import mindustry.net.Packets.StreamChunk;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** {@link PacketSerializer} through the same buffers {@link SNet} and {@link ReceivePump} use. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SerializerBenchmark{
+    @Param({"32", "512", "1100"})
+    int size;
+
+    final PacketSerializer serializer = new PacketSerializer();
+    final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(16384);
+    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16384);
+    final ByteBuffer readCopyBuffer = ByteBuffer.allocate(16384);
+    StreamChunk chunk;
+    int length;
+
+    @Setup
+    public void setup(){
+        chunk = BenchSetup.chunk(size);
+        serializer.write(readBuffer, chunk);
+        length = readBuffer.position();
+    }
+
+    @Benchmark
+    public int write(){
+        writeBuffer.limit(writeBuffer.capacity());
+        writeBuffer.position(0);
+        serializer.write(writeBuffer, chunk);
+        return writeBuffer.position();
+    }
+
+    @Benchmark
+    public Object read(){
+        readBuffer.position(0).limit(length);
+        readCopyBuffer.position(0).limit(readCopyBuffer.capacity());
+        readCopyBuffer.put(readBuffer);
+        readCopyBuffer.flip();
+        return serializer.read(readCopyBuffer);
+    }
+}
@@ -0,0 +1,117 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyDistanceFilter;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+
+import java.nio.ByteBuffer;
+
+/** Transport that discards what is sent and hands out one prepared message a set number of times. */
+public class StubTransport implements P2PTransport{
+    public long sentMessages, sentBytes;
+
+    byte[] message = {};
+    long sender;
+    int channel, remaining;
+
+    /** Makes the next {@code count} reads on a channel return a copy of {@code message} from {@code sender}. */
+    public void prepare(byte[] message, long sender, int channel, int count){
+        this.message = message;
+        this.sender = sender;
+        this.channel = channel;
+        this.remaining = count;
+    }
+
+    @Override
+    public boolean send(SteamID to, ByteBuffer data, P2PSend mode, int channel){
+        sentMessages++;
+        sentBytes += data.remaining();
+        return true;
+    }
+
+    @Override
+    public int available(int channel){
+        return channel == this.channel && remaining > 0 ? message.length : 0;
+    }
+
+    @Override
+    public long read(ByteBuffer dest, int channel){
+        remaining--;
+        int start = dest.position();
+        dest.put(message);
+        dest.limit(dest.position()).position(start);
+        return sender;
+    }
+
+    @Override
+    public boolean acceptSession(SteamID peer){
+        return true;
+    }
+
+    @Override
+    public boolean closeSession(SteamID peer){
+        return true;
+    }
+
+    @Override
+    public boolean getSessionState(SteamID peer, PeerState out){
+        out.reset();
+        out.active = true;
+        return true;
+    }
+
+    @Override
+    public void createLobby(LobbyType type, int maxMembers){
+    }
+
+    @Override
+    public void joinLobby(SteamID lobby){
+    }
+
+    @Override
+    public void leaveLobby(SteamID lobby){
+    }
+
+    @Override
+    public void requestLobbyList(int maxResults, LobbyDistanceFilter distance){
+    }
+
+    @Override
+    public SteamID getLobbyByIndex(int index){
+        return null;
+    }
+
+    @Override
+    public String getLobbyData(SteamID lobby, String key){
+        return "";
+    }
+
+    @Override
+    public boolean setLobbyData(SteamID lobby, String key, String value){
+        return true;
+    }
+
+    @Override
+    public void setLobbyType(SteamID lobby, LobbyType type){
+    }
+
+    @Override
+    public void setLobbyMemberLimit(SteamID lobby, int limit){
+    }
+
+    @Override
+    public int getNumLobbyMembers(SteamID lobby){
+        return 0;
+    }
+
+    @Override
+    public int getLobbyMemberLimit(SteamID lobby){
+        return 0;
+    }
+
+    @Override
+    public SteamID getLobbyOwner(SteamID lobby){
+        return null;
+    }
+}
@@ -0,0 +1,113 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.Core;
+import arc.struct.LongMap;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamID;
+
+import java.util.Iterator;
+
+/**
+ * Flood protection for the server. Every Steam ID gets token buckets for packets and bytes, refilled at
+ * {@link SConfig#floodPackets} and {@link SConfig#floodBytes} per second; messages over the limit are dropped before they are decoded.
+ * New sessions are capped at {@link SConfig#floodSessions} per second, and a peer that keeps sending at twice its limit
+ * is disconnected and refused for {@link SConfig#floodBan} milliseconds.
+ * Called from the receive loop and from Steam callbacks, which may be on different threads, so every method is synchronized.
+ */
+public class Admission{
+    /** Peers that were quiet for this long are forgotten, unless banned. */
+    static final long forgetAfter = 60_000;
+
+    final SNet owner;
+    final LongMap<Peer> peers = new LongMap<>();
+    float sessionTokens = SConfig.floodSessions;
+    long sessionRefill = Time.millis(), lastExpire = Time.millis();
+
+    public Admission(SNet owner){
+        this.owner = owner;
+    }
+
+    /** @return whether a session request from this peer should be accepted. */
+    public synchronized boolean allowSession(SteamID id){
+        Peer peer = peers.get(id.handle());
+        if(peer != null && peer.banned()) return false;
+        if(SConfig.floodSessions <= 0) return true;
+
+        long now = Time.millis();
+        sessionTokens = Math.min(sessionTokens + SConfig.floodSessions * (now - sessionRefill) / 1000f, SConfig.floodSessions);
+        sessionRefill = now;
+
+        if(sessionTokens < 1f) return false;
+        sessionTokens -= 1f;
+        return true;
+    }
+
+    /**
+     * Takes tokens for a received message or the packets in it.
+     * @return false if the message must be dropped.
+     */
+    public synchronized boolean admit(long from, int bytes, int packets){
+        Peer peer = peers.get(from);
+        if(peer == null) peers.put(from, peer = new Peer());
+
+        if(peer.banned()) return false;
+        peer.refill();
+
+        if((SConfig.floodPackets > 0 && peer.packets < packets) || (SConfig.floodBytes > 0 && peer.bytes < bytes)){
+            owner.stats.floodDropped.increment();
+            //dropping a second's worth of packets within a second means the peer sends at least twice its limit
+            if(++peer.dropped > Math.max(SConfig.floodPackets, 1) && SConfig.floodBan > 0) ban(from, peer);
+            return false;
+        }
+
+        peer.packets -= packets;
+        peer.bytes -= bytes;
+        return true;
+    }
+
+    void ban(long from, Peer peer){
+        peer.bannedUntil = Time.millis() + SConfig.floodBan;
+        owner.stats.floodBans.increment();
+        Log.warn("Steam peer @ is flooding, banned for @ seconds.", SteamID.createFromNativeHandle(from).getAccountID(), SConfig.floodBan / 1000);
+
+        //the receive loop may be iterating connections or running on the I/O thread
+        Core.app.post(() -> owner.disconnectSteamUser(SteamID.createFromNativeHandle(from)));
+    }
+
+    /** Forgets peers that have been quiet for a while. Cheap to call every tick. */
+    public synchronized void expire(){
+        if(peers.size == 0 || Time.timeSinceMillis(lastExpire) < 1000) return;
+        lastExpire = Time.millis();
+
+        Iterator<LongMap.Entry<Peer>> it = peers.entries();
+        while(it.hasNext()){
+            Peer peer = it.next().value;
+            if(!peer.banned() && Time.timeSinceMillis(peer.refilled) > forgetAfter) it.remove();
+        }
+    }
+
+    static class Peer{
+        float packets = SConfig.floodPackets, bytes = SConfig.floodBytes;
+        long refilled = Time.millis(), window = refilled, bannedUntil;
+        /** Messages dropped since {@link #window} started. */
+        int dropped;
+
+        void refill(){
+            long now = Time.millis();
+            float seconds = (now - refilled) / 1000f;
+            packets = Math.min(packets + SConfig.floodPackets * seconds, SConfig.floodPackets);
+            bytes = Math.min(bytes + SConfig.floodBytes * seconds, SConfig.floodBytes);
+            refilled = now;
+
+            if(now - window >= 1000){
+                window = now;
+                dropped = 0;
+            }
+        }
+
+        boolean banned(){
+            return bannedUntil != 0 && Time.millis() < bannedUntil;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamAuth.AuthSessionResponse;
+import com.codedisaster.steamworks.SteamAuth.BeginAuthSessionResult;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import mindustry.net.Packet;
+import space.shugen.MDTSteamLobbyPlugin.SNet.SteamConnection;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Steam auth tickets. A client sends its ticket in a {@link Frames#auth} message before anything else;
+ * the server starts validating it and holds back every packet of that peer, ConnectPacket included, until Steam answers.
+ * That keeps player creation and the world transfer away from peers Steam doesn't vouch for.
+ * With {@link SConfig#auth} set to "optional", peers that send no ticket, like vanilla clients, are let in unverified;
+ * with "required" they are held until {@link SConfig#authTimeout} and then disconnected.
+ * Recently verified Steam IDs are remembered, so a quick reconnect skips the round-trip.
+ * Runs on the game thread only.
+ */
+public class Authenticator{
+    /** States of {@link SteamConnection#auth}. */
+    static final int unknown = 0, pending = 1, verified = 2, unverified = 3;
+    /** How long a verified Steam ID is trusted without a new validation. */
+    static final long cacheTime = 15 * 60 * 1000L;
+    /** Packets held for a peer that is being validated, before it is disconnected. */
+    static final int maxHeld = 256;
+
+    final SNet owner;
+    /** Steam wants tickets in direct buffers. */
+    final ByteBuffer ticketBuffer = ByteBuffer.allocateDirect(2048);
+    /** Verification times by native Steam ID, least recently used first. */
+    final LinkedHashMap<Long, Long> recent = new LinkedHashMap<Long, Long>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest){
+            return size() > SConfig.authCacheSize;
+        }
+    };
+    long lastExpire;
+
+    public Authenticator(SNet owner){
+        this.owner = owner;
+    }
+
+    static boolean enabled(){
+        return !SConfig.auth.equals("off");
+    }
+
+    static boolean required(){
+        return SConfig.auth.equals("required");
+    }
+
+    /** Client side: sends the ticket of the local user, ahead of every other message to that server. */
+    public void sendTicket(SteamID server){
+        if(!enabled()) return;
+
+        try{
+            owner.transport.cancelAuthTickets();
+            ticketBuffer.position(0).limit(ticketBuffer.capacity());
+            ticketBuffer.put(Frames.auth);
+            if(!owner.transport.getAuthTicket(ticketBuffer)) return;
+
+            ticketBuffer.position(0);
+            owner.sendP2P(server, ticketBuffer, P2PSend.Reliable, Channels.control);
+        }catch(Exception e){
+            Log.err("Failed to send a Steam auth ticket to @.", server.getAccountID());
+            Log.err(e);
+        }
+    }
+
+    /** Client side: invalidates the tickets that were sent. */
+    public void cancelTickets(){
+        owner.transport.cancelAuthTickets();
+    }
+
+    /** Server side: a peer sent its ticket. Only the first message of a peer may be one. */
+    void ticket(SteamConnection con, Ticket ticket){
+        if(!enabled() || con.auth != unknown) return;
+
+        if(recentlyVerified(con.id)){
+            verified(con);
+            return;
+        }
+
+        if(ticket.data.length > ticketBuffer.capacity()){
+            reject(con, "ticket too large");
+            return;
+        }
+
+        ticketBuffer.position(0).limit(ticketBuffer.capacity());
+        ticketBuffer.put(ticket.data).flip();
+        con.auth = pending;
+        con.authStarted = Time.millis();
+
+        try{
+            BeginAuthSessionResult result = owner.transport.beginAuthSession(ticketBuffer, con.sid);
+            if(result != BeginAuthSessionResult.OK){
+                reject(con, result.name());
+            }else{
+                con.authSession = true;
+            }
+        }catch(Exception e){
+            reject(con, e.getMessage());
+        }
+    }
+
+    /**
+     * Server side, for every packet of a peer.
+     * @return whether the packet can be handled now; if not, it is held until the peer is verified.
+     */
+    boolean admit(SteamConnection con, Packet packet){
+        if(con.auth == unknown){
+            if(!enabled() || recentlyVerified(con.id)){
+                con.auth = verified;
+            }else if(!required()){
+                con.auth = unverified;
+            }else{
+                //waiting for a ticket that may never come
+                con.auth = pending;
+                con.authStarted = Time.millis();
+            }
+        }
+
+        if(con.auth != pending) return true;
+
+        if(con.held == null) con.held = new Seq<>();
+        if(con.held.size >= maxHeld){
+            reject(con, "too many packets before authentication");
+            return false;
+        }
+        con.held.add(packet);
+        return false;
+    }
+
+    /** Server side: Steam's answer to a ticket. It may come again later, for example when the ticket is canceled. */
+    void validated(SteamID id, AuthSessionResponse response){
+        SteamConnection con = owner.connections.get(id.handle());
+        if(con == null){
+            owner.transport.endAuthSession(id);
+            return;
+        }
+
+        if(response == AuthSessionResponse.OK){
+            if(con.auth != pending) return;
+            recent.put(con.id, Time.millis());
+            verified(con);
+        }else{
+            recent.remove(con.id);
+            reject(con, response.name());
+        }
+    }
+
+    void verified(SteamConnection con){
+        con.auth = verified;
+        owner.stats.authVerified++;
+        Log.info("Steam user @ authenticated.", con.address);
+
+        Seq<Packet> held = con.held;
+        con.held = null;
+        if(held == null) return;
+
+        for(int i = 0; i < held.size && owner.connections.get(con.id) == con; i++){
+            owner.handler.handleServer(con, held.get(i));
+        }
+    }
+
+    void reject(SteamConnection con, String reason){
+        owner.stats.authFailed++;
+        Log.info("Steam user @ failed authentication: @", con.address, reason);
+        con.held = null;
+        con.close();
+    }
+
+    boolean recentlyVerified(long id){
+        Long time = recent.get(id);
+        return time != null && Time.timeSinceMillis(time) < cacheTime;
+    }
+
+    /** Server side: ends the auth session of a peer that left. */
+    void closed(SteamConnection con){
+        if(con.authSession){
+            con.authSession = false;
+            owner.transport.endAuthSession(con.sid);
+        }
+    }
+
+    /** Disconnects peers that took too long to be validated. Cheap to call every tick. */
+    public void expire(){
+        if(Time.timeSinceMillis(lastExpire) < 1000) return;
+        lastExpire = Time.millis();
+
+        for(SteamConnection con : owner.connections.steam()){
+            if(con.auth == pending && Time.timeSinceMillis(con.authStarted) > SConfig.authTimeout){
+                reject(con, "timed out");
+            }
+        }
+    }
+
+    /** The ticket of a {@link Frames#auth} message, handed from the receive loop to {@link SNet#handleReceived}. */
+    static class Ticket{
+        final byte[] data;
+
+        Ticket(byte[] data){
+            this.data = data;
+        }
+    }
+}
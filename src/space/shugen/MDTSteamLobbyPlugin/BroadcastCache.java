@@ -0,0 +1,107 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Serialized form of the packet being broadcast, shared by every Steam recipient.
+ * The cache is only active during {@link SNet#broadcast}, and only for sends to the connection it is at, so a packet that
+ * one recipient's send causes to be sent elsewhere is serialized on its own.
+ * Only a packet that really goes to everyone is shared: the game builds entity and state snapshots for each player,
+ * so every snapshot is a different object and is serialized once per player.
+ * The cached buffer belongs to the cache until the next packet or the end of the broadcast, then goes back to the arena.
+ */
+public class BroadcastCache{
+    final BufferArena arena;
+
+    ByteBuffer buffer;
+    /** The cached packet compressed, once a recipient asked for it; null if it doesn't compress. */
+    ByteBuffer packed;
+    boolean packedSet;
+    int packedLength;
+    boolean active;
+    Object object;
+    boolean reliable;
+    int length;
+    /** Connection the broadcast is at. */
+    Object recipient;
+
+    public BroadcastCache(BufferArena arena){
+        this.arena = arena;
+    }
+
+    public void begin(){
+        end();
+        active = true;
+    }
+
+    public void end(){
+        active = false;
+        object = null;
+        recipient = null;
+        drop();
+    }
+
+    /** The broadcast moved on to another connection. */
+    public void next(Object recipient){
+        this.recipient = recipient;
+    }
+
+    /** @return whether a packet sent to this connection is part of the broadcast, and is to be cached. */
+    public boolean caching(Object recipient){
+        return active && recipient == this.recipient;
+    }
+
+    /** @return whether the cached bytes can be sent to this connection for this object. */
+    public boolean matches(Object object, boolean reliable, Object recipient){
+        return caching(recipient) && object == this.object && reliable == this.reliable;
+    }
+
+    /** @return whether a buffer is the cached one, which stays with the cache after it is sent. */
+    public boolean holds(ByteBuffer data){
+        return data != null && data == buffer;
+    }
+
+    /** Forgets the cached object before another one is serialized. */
+    public void invalidate(){
+        object = null;
+        drop();
+    }
+
+    /** Takes over a flipped buffer holding the serialized object. */
+    public void set(Object object, boolean reliable, ByteBuffer buffer){
+        drop();
+        this.object = object;
+        this.reliable = reliable;
+        this.buffer = buffer;
+        this.length = buffer.remaining();
+    }
+
+    /** @return the cached bytes, ready to be sent. */
+    public ByteBuffer data(){
+        buffer.limit(length).position(0);
+        return buffer;
+    }
+
+    /** @return the cached bytes compressed, ready to be sent, or null if they are sent as they are. */
+    public ByteBuffer compressed(SNet net){
+        if(!packedSet){
+            packedSet = true;
+            packed = net.compress(data(), object);
+            if(packed != null) packedLength = packed.remaining();
+        }
+        if(packed != null) packed.limit(packedLength).position(0);
+        return packed;
+    }
+
+    void drop(){
+        if(buffer != null){
+            arena.release(buffer);
+            buffer = null;
+        }
+        if(packed != null){
+            arena.release(packed);
+            packed = null;
+        }
+        packedSet = false;
+    }
+}
@@ -0,0 +1,41 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import mindustry.net.Net;
+import mindustry.net.NetConnection;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * The game's {@link Net}, with its broadcasts sent through {@link SNet#broadcast} so a packet is serialized once for all
+ * Steam players. Net broadcasts by iterating the provider's connections, which looks the same as any other loop over them.
+ * Takes over the state of the Net it replaces, including the handlers the game registered with it.
+ */
+public class BroadcastNet extends Net{
+    final SNet owner;
+
+    public BroadcastNet(Net net, SNet owner) throws IllegalAccessException{
+        super(owner);
+        this.owner = owner;
+
+        for(Field field : Net.class.getDeclaredFields()){
+            if(Modifier.isStatic(field.getModifiers())) continue;
+            field.setAccessible(true);
+            field.set(this, field.get(net));
+        }
+    }
+
+    @Override
+    public void send(Object object, boolean reliable){
+        if(server()){
+            owner.broadcast(object, reliable, null);
+        }else{
+            super.send(object, reliable);
+        }
+    }
+
+    @Override
+    public void sendExcept(NetConnection except, Object object, boolean reliable){
+        owner.broadcast(object, reliable, except);
+    }
+}
@@ -0,0 +1,90 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte buffers in power-of-two size classes, from {@link #minSize} up to {@link #maxSize}, the largest Steam message.
+ * Small classes keep a handful of buffers around; large ones keep at most one, so a rare huge packet costs
+ * one allocation and no lasting memory. Buffers may be acquired on one thread and released on another.
+ */
+public class BufferArena{
+    public static final int minShift = 10, maxShift = 20;
+    public static final int minSize = 1 << minShift, maxSize = 1 << maxShift;
+    /** Buffers kept per class up to 16 KB, up to 64 KB and above. */
+    static final int smallRetained = 16, mediumRetained = 4, largeRetained = 1;
+
+    final boolean direct;
+    final Pool[] pools = new Pool[maxShift - minShift + 1];
+    /** Buffers that had to be created, for telling whether allocation stays flat. */
+    public final AtomicLong allocated = new AtomicLong();
+
+    public BufferArena(boolean direct){
+        this.direct = direct;
+        for(int i = 0; i < pools.length; i++){
+            int size = 1 << (minShift + i);
+            pools[i] = new Pool(size <= 16384 ? smallRetained : size <= 65536 ? mediumRetained : largeRetained);
+        }
+    }
+
+    /** @return the index of the smallest class holding {@code size} bytes. */
+    static int classOf(int size){
+        if(size <= minSize) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - minShift;
+    }
+
+    /** @return the capacity of the buffers {@link #acquire} hands out for {@code size} bytes. */
+    public static int capacityOf(int size){
+        return minSize << classOf(size);
+    }
+
+    /** @return a cleared buffer of at least {@code size} bytes. */
+    public ByteBuffer acquire(int size){
+        if(size > maxSize) throw new IllegalArgumentException("No buffer of " + size + " bytes, the limit is " + maxSize);
+
+        int index = classOf(size);
+        ByteBuffer buffer = pools[index].poll();
+        if(buffer == null){
+            allocated.incrementAndGet();
+            int capacity = minSize << index;
+            buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /** @return a buffer of the next class up, releasing the one that was too small. */
+    public ByteBuffer grow(ByteBuffer buffer){
+        int size = buffer.capacity() * 2;
+        release(buffer);
+        return acquire(size);
+    }
+
+    /** Hands a buffer back. It must not be used afterwards; buffers from elsewhere are ignored. */
+    public void release(ByteBuffer buffer){
+        int capacity = buffer.capacity();
+        if(buffer.isDirect() != direct || Integer.bitCount(capacity) != 1 || capacity < minSize || capacity > maxSize) return;
+        pools[classOf(capacity)].offer(buffer);
+    }
+
+    static class Pool{
+        final ByteBuffer[] free;
+        int size;
+
+        Pool(int retained){
+            free = new ByteBuffer[retained];
+        }
+
+        synchronized ByteBuffer poll(){
+            if(size == 0) return null;
+            ByteBuffer buffer = free[--size];
+            free[size] = null;
+            return buffer;
+        }
+
+        /** Drops the buffer if the class already keeps enough of them. */
+        synchronized void offer(ByteBuffer buffer){
+            if(size < free.length) free[size++] = buffer;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Time;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.zip.DataFormatException;
+
+/**
+ * Append-only log of the raw P2P messages a server reads and sends, for replaying real sessions without Steam
+ * through {@link ReplayTransport}. Written through memory-mapped segments, so recording a message is a copy.
+ * The file is {@code [i64 magic][i64 start time in ms]}, then records of
+ * {@code [u8 kind][u8 channel][i64 ns since start][i64 peer][i32 length][message]}; a zero kind ends it.
+ * Records come from the thread that does the Steam I/O; {@link #close()} may come from any thread.
+ */
+public class Capture{
+    /** "MDTSCAP1". */
+    static final long magic = 0x4d44545343415031L;
+    static final int fileHeaderSize = 16, recordHeaderSize = 22;
+    /** Kinds of records. The channel of an outbound record also holds the send mode ordinal times 16. */
+    static final int end = 0, inbound = 1, outbound = 2;
+    /** Size of the file regions that are mapped at a time. */
+    static final int segmentSize = 64 * 1024 * 1024;
+
+    public final File file;
+    final FileChannel channel;
+    final long start = Time.nanos();
+    final long limit;
+
+    MappedByteBuffer segment;
+    /** File offset of {@link #segment}. */
+    long segmentStart;
+    long records;
+    boolean closed;
+
+    /** @param limit size in bytes after which recording stops. */
+    public Capture(File file, long limit) throws IOException{
+        this.file = file;
+        this.limit = limit;
+        this.channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+
+        map(0);
+        segment.putLong(magic).putLong(System.currentTimeMillis());
+    }
+
+    void map(long position) throws IOException{
+        segmentStart = position;
+        segment = channel.map(MapMode.READ_WRITE, position, segmentSize);
+    }
+
+    /** @return bytes written so far. */
+    public synchronized long size(){
+        return segmentStart + segment.position();
+    }
+
+    /** Records the remaining bytes of a message without moving the buffer's position. */
+    public synchronized void record(int kind, long peer, int channel, ByteBuffer data){
+        if(closed) return;
+
+        int length = data.remaining();
+        try{
+            if(size() + recordHeaderSize + length > limit){
+                Log.warn("Steam capture @ reached @ MB, recording stopped.", file, limit / 1024 / 1024);
+                close();
+                return;
+            }
+            //the next segment starts right where this one ends, so records never span two
+            if(segment.remaining() < recordHeaderSize + length + 1) map(size());
+
+            int position = data.position();
+            segment.put((byte)kind).put((byte)channel).putLong(Time.timeSinceNanos(start)).putLong(peer).putInt(length);
+            segment.put(data);
+            data.position(position);
+            records++;
+        }catch(IOException e){
+            Log.err("Steam capture failed, recording stopped.");
+            Log.err(e);
+            close();
+        }
+    }
+
+    /**
+     * Reads the Mindustry packets of a capture, sent and received, with batches taken apart, compressed packets inflated
+     * with the loaded dictionary and framing messages skipped.
+     * @param limit bytes of packets after which reading stops.
+     */
+    public static Seq<byte[]> packets(File file, long limit) throws IOException{
+        Seq<byte[]> packets = new Seq<>();
+        Compressor compressor = new Compressor(new BufferArena(false));
+        int[] failed = {0};
+        try(RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()){
+            if(channel.size() > Integer.MAX_VALUE) throw new IOException("Captures over 2 GB can't be read: " + file);
+            MappedByteBuffer data = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            if(data.limit() < fileHeaderSize || data.getLong(0) != magic) throw new IOException("Not a Steam capture: " + file);
+
+            long total = 0;
+            int cursor = fileHeaderSize;
+            while(total < limit && cursor + recordHeaderSize <= data.limit() && data.get(cursor) != end){
+                int length = data.getInt(cursor + 18), start = cursor + recordHeaderSize;
+                if(length < 0 || start + length > data.limit()) break;
+                cursor = start + length;
+                if(length == 0) continue;
+
+                byte marker = data.get(start);
+                if(marker == Frames.batch){
+                    int position = start + 1;
+                    while(position + Frames.lengthSize <= cursor){
+                        int size = data.getShort(position) & 0xffff;
+                        position += Frames.lengthSize;
+                        if(position + size > cursor) break;
+                        total += add(packets, compressor, failed, data, position, size);
+                        position += size;
+                    }
+                }else{
+                    total += add(packets, compressor, failed, data, start, length);
+                }
+            }
+        }
+        if(failed[0] > 0) Log.warn("Skipped @ compressed packets of @ that don't inflate with the loaded dictionary.", failed[0], file);
+        return packets;
+    }
+
+    /** Adds a packet unless it is a framing message, inflating it first if it is compressed. */
+    static int add(Seq<byte[]> packets, Compressor compressor, int[] failed, ByteBuffer data, int offset, int length){
+        //packets of a batch may be framed themselves
+        if(length == 0) return 0;
+        byte marker = data.get(offset);
+        if(marker < 0 && marker != Frames.compressed) return 0;
+
+        byte[] packet = new byte[length];
+        ByteBuffer view = data.duplicate();
+        view.position(offset);
+        view.get(packet);
+
+        if(marker == Frames.compressed){
+            ByteBuffer inflated;
+            try{
+                //decompress needs a heap buffer
+                inflated = compressor.decompress(ByteBuffer.wrap(packet));
+            }catch(DataFormatException e){
+                failed[0]++;
+                return 0;
+            }
+            packet = new byte[inflated.remaining()];
+            inflated.get(packet);
+            compressor.arena.release(inflated);
+        }
+
+        packets.add(packet);
+        return packet.length;
+    }
+
+    /** Stops recording and trims the file. Later records are ignored. */
+    public synchronized void close(){
+        if(closed) return;
+        closed = true;
+
+        long size = size();
+        try{
+            segment.force();
+            //fails on some systems while the segment is still mapped, the zero kind after the last record ends it then
+            channel.truncate(size);
+        }catch(IOException ignored){
+        }
+
+        try{
+            channel.close();
+        }catch(IOException e){
+            Log.err(e);
+        }
+        Log.info("Steam capture @: @ messages, @ KB.", file, records, size / 1024);
+    }
+}
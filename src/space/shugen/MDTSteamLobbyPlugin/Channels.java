@@ -0,0 +1,34 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import mindustry.gen.BlockSnapshotCallPacket;
+import mindustry.gen.EntitySnapshotCallPacket;
+import mindustry.gen.HiddenSnapshotCallPacket;
+import mindustry.gen.StateSnapshotCallPacket;
+
+/**
+ * P2P channels used for the different kinds of traffic, so that reliable traffic never holds back snapshots.
+ * Steam only orders messages within a channel, so every reliable packet, world data included, shares one: the client
+ * has to see the packets sent before a world stream before it builds the world, and those sent after it only afterwards.
+ * Vanilla clients only read channel 0, so everything goes there unless the peer is known to read the others.
+ */
+public class Channels{
+    /** Reliable game packets and world data. */
+    public static final int control = 0;
+    /** Unreliable snapshots. */
+    public static final int snapshot = 1;
+
+    /** Order in which the channels are read. */
+    public static final int[] priority = {control, snapshot};
+    public static final int count = 2;
+
+    /** @return the channel a packet should be sent on, if the peer reads all channels. */
+    public static int of(boolean reliable){
+        return reliable ? control : snapshot;
+    }
+
+    /** @return whether a packet is one of the game's snapshots, which later snapshots of the same kind supersede. */
+    public static boolean isSnapshot(Object packet){
+        return packet instanceof EntitySnapshotCallPacket || packet instanceof StateSnapshotCallPacket
+            || packet instanceof BlockSnapshotCallPacket || packet instanceof HiddenSnapshotCallPacket;
+    }
+}
@@ -0,0 +1,235 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.Seq;
+import arc.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate with a preset dictionary, for single packets. Mindustry packets are small and look alike, so on their own they
+ * barely compress, but most of their bytes can be found in a dictionary trained on captured traffic with {@link #train}.
+ * A compressed packet is {@link Frames#compressed}, its original length as a varint, then raw deflate data; packets below
+ * {@link SConfig#compressionThreshold} or that don't get smaller are sent as they are. Peers only compress for each other
+ * after agreeing on it and on the dictionary through {@link JoinPipeline.Hello}.
+ * Not thread-safe: the game thread compresses with one instance, the receiving thread decompresses with another.
+ */
+public class Compressor{
+    /** Deflate only looks 32 KB back, and the end of the dictionary is the cheapest to refer to. */
+    public static final int maxDictionarySize = 32 * 1024, defaultDictionarySize = 16 * 1024;
+    /** Length of the substrings that {@link #train} counts, and of the pieces it builds the dictionary from. */
+    static final int trainKey = 8, trainSegment = 48;
+    /** Sample bytes {@link #train} looks at, so a long capture doesn't take minutes. */
+    static final int trainLimit = 8 * 1024 * 1024;
+
+    /** Dictionary shared by every instance, and its Adler-32 that peers compare; empty and 0 without one. */
+    static byte[] dictionary = {};
+    static int dictionaryId;
+
+    final BufferArena arena;
+    /** Created on first use, since each instance only ever does one of the two. */
+    Deflater deflater;
+    Inflater inflater;
+    /** Deflater and Inflater only take arrays before Java 11. */
+    byte[] input = new byte[2048], output = new byte[2048];
+
+    /** @param arena where compressed packets are taken from; decompressed ones come from the same arena, which has to hold heap buffers then. */
+    public Compressor(BufferArena arena){
+        this.arena = arena;
+    }
+
+    /** Replaces the dictionary of every instance. Peers that don't have the same one stop compressing for each other. */
+    public static void setDictionary(byte[] data){
+        if(data.length > maxDictionarySize) data = Arrays.copyOfRange(data, data.length - maxDictionarySize, data.length);
+
+        Adler32 adler = new Adler32();
+        adler.update(data, 0, data.length);
+        dictionary = data;
+        dictionaryId = data.length == 0 ? 0 : (int)adler.getValue();
+    }
+
+    /** Loads {@link SConfig#compressionDictionary}, if there is one. */
+    public static void load(){
+        if(SConfig.compressionDictionary.isEmpty()) return;
+
+        File file = new File(SConfig.compressionDictionary);
+        try{
+            setDictionary(Files.readAllBytes(file.toPath()));
+            Log.info("Loaded a @ byte compression dictionary, id @.", dictionary.length, Integer.toHexString(dictionaryId));
+        }catch(IOException e){
+            Log.err("Failed to load the compression dictionary @, compressing without one.", file.getAbsolutePath());
+            Log.err(e);
+        }
+    }
+
+    /**
+     * Compresses the remaining bytes of a buffer without moving its position.
+     * @return a flipped buffer from the arena that the caller releases, or null if the packet is better sent as it is.
+     */
+    public ByteBuffer compress(ByteBuffer data){
+        int length = data.remaining();
+        if(length < SConfig.compressionThreshold) return null;
+
+        if(input.length < length) input = new byte[BufferArena.capacityOf(length)];
+        if(output.length < length) output = new byte[BufferArena.capacityOf(length)];
+        int position = data.position();
+        data.get(input, 0, length);
+        data.position(position);
+
+        if(deflater == null) deflater = new Deflater(SConfig.compressionLevel, true);
+        deflater.reset();
+        if(dictionary.length > 0) deflater.setDictionary(dictionary);
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+
+        int header = 1 + varintSize(length);
+        //whatever doesn't fit into the original size isn't worth sending compressed
+        int size = deflater.deflate(output, header, length - header);
+        if(!deflater.finished() || header + size >= length) return null;
+
+        output[0] = Frames.compressed;
+        int value = length;
+        for(int i = 1; i < header - 1; i++, value >>>= 7){
+            output[i] = (byte)(value & 0x7f | 0x80);
+        }
+        output[header - 1] = (byte)value;
+
+        ByteBuffer buffer = arena.acquire(header + size);
+        buffer.put(output, 0, header + size).flip();
+        return buffer;
+    }
+
+    /**
+     * Takes a compressed packet, starting with its marker, from a heap buffer, and consumes it.
+     * @return a flipped buffer from the arena holding the original packet, which the caller releases.
+     */
+    public ByteBuffer decompress(ByteBuffer message) throws DataFormatException{
+        message.get();
+        int length = 0;
+        for(int shift = 0; ; shift += 7){
+            if(!message.hasRemaining() || shift > 21) throw new DataFormatException("Truncated packet length");
+            byte b = message.get();
+            length |= (b & 0x7f) << shift;
+            if(b >= 0) break;
+        }
+        if(length <= 0 || length > BufferArena.maxSize) throw new DataFormatException("Invalid packet length: " + length);
+
+        if(inflater == null) inflater = new Inflater(true);
+        inflater.reset();
+        if(dictionary.length > 0) inflater.setDictionary(dictionary);
+        inflater.setInput(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        message.position(message.limit());
+
+        ByteBuffer buffer = arena.acquire(length);
+        try{
+            int size = inflater.inflate(buffer.array(), buffer.arrayOffset(), length);
+            if(size != length) throw new DataFormatException("Expected " + length + " bytes, got " + size);
+        }catch(DataFormatException e){
+            arena.release(buffer);
+            throw e;
+        }
+        buffer.limit(length);
+        return buffer;
+    }
+
+    static int varintSize(int value){
+        return value < 1 << 7 ? 1 : value < 1 << 14 ? 2 : value < 1 << 21 ? 3 : 4;
+    }
+
+    /**
+     * Builds a dictionary out of the pieces of the samples that the most other samples share, greedily: every round takes
+     * the piece with the most substrings that appear in several samples and aren't in the dictionary yet.
+     * The best pieces go last, where deflate refers to them most cheaply.
+     */
+    public static byte[] train(Seq<byte[]> samples, int size){
+        size = Math.min(size, maxDictionarySize);
+
+        //in how many samples every substring appears
+        HashMap<Long, Integer> counts = new HashMap<>();
+        HashSet<Long> seen = new HashSet<>();
+        Seq<Segment> segments = new Seq<>();
+        int total = 0;
+        for(byte[] sample : samples){
+            if(total >= trainLimit) break;
+            total += sample.length;
+
+            seen.clear();
+            for(int i = 0; i + trainKey <= sample.length; i++){
+                long key = key(sample, i);
+                if(seen.add(key)) counts.merge(key, 1, Integer::sum);
+            }
+            for(int start = 0; start + trainKey <= sample.length; start += trainSegment){
+                segments.add(new Segment(sample, start, Math.min(start + trainSegment, sample.length)));
+            }
+        }
+
+        PriorityQueue<Segment> queue = new PriorityQueue<>((a, b) -> Integer.compare(b.score, a.score));
+        for(Segment segment : segments){
+            segment.score = segment.score(counts);
+            if(segment.score > 0) queue.add(segment);
+        }
+
+        byte[] result = new byte[size];
+        int end = size;
+        while(end > 0 && !queue.isEmpty()){
+            Segment best = queue.poll();
+            //scores only drop as substrings get covered, so a stale score is an upper bound
+            int score = best.score(counts);
+            if(score <= 0) continue;
+            if(!queue.isEmpty() && score < queue.peek().score){
+                best.score = score;
+                queue.add(best);
+                continue;
+            }
+
+            int length = Math.min(best.end - best.start, end);
+            end -= length;
+            System.arraycopy(best.data, best.end - length, result, end, length);
+            for(int i = best.start; i + trainKey <= best.end; i++){
+                counts.remove(key(best.data, i));
+            }
+        }
+
+        return Arrays.copyOfRange(result, end, size);
+    }
+
+    static long key(byte[] data, int offset){
+        long key = 0;
+        for(int i = 0; i < trainKey; i++){
+            key = key << 8 | (data[offset + i] & 0xff);
+        }
+        return key;
+    }
+
+    static class Segment{
+        final byte[] data;
+        final int start, end;
+        int score;
+
+        Segment(byte[] data, int start, int end){
+            this.data = data;
+            this.start = start;
+            this.end = end;
+        }
+
+        /** @return the number of substrings in this piece that other samples share. */
+        int score(HashMap<Long, Integer> counts){
+            int score = 0;
+            for(int i = start; i + trainKey <= end; i++){
+                Integer count = counts.get(key(data, i));
+                if(count != null && count > 1) score += count;
+            }
+            return score;
+        }
+    }
+}
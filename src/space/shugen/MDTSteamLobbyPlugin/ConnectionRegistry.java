@@ -0,0 +1,108 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.LongMap;
+import mindustry.net.Net.NetProvider;
+import mindustry.net.NetConnection;
+import space.shugen.MDTSteamLobbyPlugin.SNet.SteamConnection;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Steam connections by the 64-bit native handle of the peer, iterated together with the connections of the wrapped provider.
+ * Changes are made under a lock and publish a fresh array, so iteration never locks and never sees a half-applied change.
+ * Like {@link arc.struct.Seq}, the iterators are reused: iterate on the game thread only, and at most two levels deep.
+ */
+public class ConnectionRegistry implements Iterable<NetConnection>{
+    static final SteamConnection[] empty = {};
+
+    final NetProvider provider;
+    final LongMap<SteamConnection> map = new LongMap<>();
+    volatile SteamConnection[] connections = empty;
+
+    private final Iter iterator1 = new Iter(), iterator2 = new Iter();
+    private boolean alternate;
+
+    public ConnectionRegistry(NetProvider provider){
+        this.provider = provider;
+    }
+
+    public synchronized SteamConnection get(long id){
+        return map.get(id);
+    }
+
+    /** @return false if a connection with the same ID is already registered. */
+    public synchronized boolean add(SteamConnection con){
+        if(map.containsKey(con.id)) return false;
+        map.put(con.id, con);
+
+        SteamConnection[] old = connections;
+        SteamConnection[] next = new SteamConnection[old.length + 1];
+        System.arraycopy(old, 0, next, 0, old.length);
+        next[old.length] = con;
+        connections = next;
+        return true;
+    }
+
+    /** @return the removed connection, or null if there was none. */
+    public synchronized SteamConnection remove(long id){
+        SteamConnection con = map.remove(id);
+        if(con == null) return null;
+
+        SteamConnection[] old = connections;
+        SteamConnection[] next = new SteamConnection[old.length - 1];
+        for(int i = 0, j = 0; i < old.length; i++){
+            if(old[i] != con) next[j++] = old[i];
+        }
+        connections = next;
+        return con;
+    }
+
+    public synchronized void clear(){
+        map.clear();
+        connections = empty;
+    }
+
+    /** @return the Steam connections at the time of the call. Never modify the array. */
+    public SteamConnection[] steam(){
+        return connections;
+    }
+
+    public int size(){
+        return connections.length;
+    }
+
+    @Override
+    public Iterator<NetConnection> iterator(){
+        Iter iter = alternate ? iterator2 : iterator1;
+        alternate = !alternate;
+        iter.reset();
+        return iter;
+    }
+
+    class Iter implements Iterator<NetConnection>{
+        SteamConnection[] steam;
+        Iterator<? extends NetConnection> others;
+        int index;
+
+        void reset(){
+            steam = connections;
+            others = null;
+            index = 0;
+        }
+
+        @Override
+        public boolean hasNext(){
+            if(index < steam.length) return true;
+            if(others == null) others = provider.getConnections().iterator();
+            return others.hasNext();
+        }
+
+        @Override
+        public NetConnection next(){
+            if(!hasNext()) throw new NoSuchElementException();
+            if(index < steam.length) return steam[index++];
+            return others.next();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.IntMap;
+import arc.struct.LongMap;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamException;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Splits unreliable packets bigger than {@link SConfig#mtu} into {@link Frames#fragment} datagrams and puts them back together.
+ * A fragment is the marker, an unsigned short sequence, the index and the fragment count, followed by the payload.
+ * If any fragment is lost the whole packet is, like any other unreliable packet; incomplete sets are dropped after {@link SConfig#fragmentTimeout}.
+ */
+public class Fragmenter{
+    public static final int headerSize = 5;
+    /** The count is stored in one byte. */
+    public static final int maxFragments = 255;
+    /** Limit on incomplete sets per peer, so a peer can't make us hold on to arbitrary amounts of memory; its oldest set makes room. */
+    static final int maxPartials = 16;
+
+    final SNet owner;
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(SConfig.mtu);
+    /** Incomplete sets by sender, then by sequence. */
+    final LongMap<IntMap<Partial>> partials = new LongMap<>();
+    int sequence;
+    long lastExpire;
+
+    public Fragmenter(SNet owner){
+        this.owner = owner;
+    }
+
+    /**
+     * Sends the remaining bytes of a buffer as fragments, leaving its position untouched.
+     * @return false if the packet needs more than {@link #maxFragments} fragments and nothing was sent.
+     */
+    public boolean send(SteamID to, ByteBuffer data, int channel) throws SteamException{
+        int payload = buffer.capacity() - headerSize;
+        int start = data.position(), end = data.limit();
+        int count = (end - start + payload - 1) / payload;
+        if(count > maxFragments) return false;
+
+        short seq = (short)sequence++;
+        try{
+            for(int i = 0; i < count; i++){
+                int offset = start + i * payload;
+                buffer.position(0).limit(buffer.capacity());
+                buffer.put(Frames.fragment).putShort(seq).put((byte)i).put((byte)count);
+                data.limit(Math.min(offset + payload, end)).position(offset);
+                buffer.put(data);
+                buffer.flip();
+                owner.sendP2P(to, buffer, P2PSend.UnreliableNoDelay, channel);
+            }
+        }finally{
+            data.limit(end).position(start);
+        }
+        return true;
+    }
+
+    /**
+     * Takes a fragment, starting with its marker.
+     * @return the whole packet once its last fragment arrived, otherwise null.
+     */
+    public ByteBuffer receive(long from, ByteBuffer message){
+        if(message.remaining() < headerSize) return null;
+
+        message.get();
+        int seq = message.getShort() & 0xffff;
+        int index = message.get() & 0xff;
+        int count = message.get() & 0xff;
+        if(index >= count) return null;
+
+        IntMap<Partial> sets = partials.get(from);
+        if(sets == null) partials.put(from, sets = new IntMap<>());
+        Partial partial = sets.get(seq);
+        if(partial == null){
+            if(sets.size >= maxPartials) dropOldest(sets);
+            sets.put(seq, partial = new Partial(count));
+        }else if(partial.parts.length != count){
+            sets.remove(seq);
+            return null;
+        }
+
+        if(partial.parts[index] == null){
+            byte[] part = new byte[message.remaining()];
+            message.get(part);
+            partial.parts[index] = part;
+            partial.length += part.length;
+            partial.received++;
+        }
+
+        if(partial.received < count) return null;
+        sets.remove(seq);
+        if(sets.size == 0) partials.remove(from);
+
+        byte[] whole = new byte[partial.length];
+        int offset = 0;
+        for(byte[] part : partial.parts){
+            System.arraycopy(part, 0, whole, offset, part.length);
+            offset += part.length;
+        }
+        return ByteBuffer.wrap(whole);
+    }
+
+    /** Drops incomplete sets that are too old. Cheap to call every tick. */
+    public void expire(){
+        if(partials.size == 0 || Time.timeSinceMillis(lastExpire) < SConfig.fragmentTimeout / 4) return;
+        lastExpire = Time.millis();
+
+        Iterator<LongMap.Entry<IntMap<Partial>>> peers = partials.entries();
+        while(peers.hasNext()){
+            IntMap<Partial> sets = peers.next().value;
+            Iterator<IntMap.Entry<Partial>> it = sets.entries();
+            while(it.hasNext()){
+                if(Time.timeSinceMillis(it.next().value.created) > SConfig.fragmentTimeout) it.remove();
+            }
+            if(sets.size == 0) peers.remove();
+        }
+    }
+
+    static void dropOldest(IntMap<Partial> sets){
+        int oldest = -1;
+        long created = Long.MAX_VALUE;
+        for(IntMap.Entry<Partial> entry : sets.entries()){
+            if(entry.value.created < created){
+                created = entry.value.created;
+                oldest = entry.key;
+            }
+        }
+        sets.remove(oldest);
+    }
+
+    static class Partial{
+        final byte[][] parts;
+        final long created = Time.millis();
+        int received, length;
+
+        Partial(int count){
+            parts = new byte[count][];
+        }
+    }
+}
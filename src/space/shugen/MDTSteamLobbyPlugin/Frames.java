@@ -0,0 +1,28 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+/**
+ * Leading bytes of P2P messages that are not plain {@link mindustry.net.ArcNetProvider.PacketSerializer} output.
+ * Packet ids are never negative and -2 marks a framework message, so anything below that is free.
+ */
+public class Frames{
+    /** Several packets, each prefixed with an unsigned short length. */
+    public static final byte batch = -3;
+    /** Part of a packet too big for one unreliable datagram, see {@link Fragmenter}. */
+    public static final byte fragment = -4;
+    /** A Steam auth ticket, see {@link Authenticator}. */
+    public static final byte auth = -5;
+    /** Opens the P2P session ahead of a join and offers features, see {@link JoinPipeline.Hello}. */
+    public static final byte hello = -6;
+    /** A packet compressed by {@link Compressor}. */
+    public static final byte compressed = -7;
+
+    /** Size of the length prefix of every packet inside a batch. */
+    public static final int lengthSize = 2;
+
+    /** Features a peer may understand. Vanilla clients understand none of them. */
+    public static final int featureBatch = 1, featureChannels = 2, featureFragments = 4, featureCompression = 8;
+    /** Not a framing: the peer keeps its world and comes back after its session drops, see {@link Resumption}. */
+    public static final int featureResume = 16;
+    /** Features this plugin reads from any peer. Compression also needs the same dictionary on both sides. */
+    public static final int readable = featureBatch | featureChannels | featureFragments;
+}
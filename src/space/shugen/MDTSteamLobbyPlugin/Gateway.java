@@ -0,0 +1,336 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.ApplicationListener;
+import arc.struct.LongMap;
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamAuth.AuthSessionResponse;
+import com.codedisaster.steamworks.SteamAuth.BeginAuthSessionResult;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import com.codedisaster.steamworks.SteamResult;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Gateway mode, enabled with {@link SConfig#gatewayBackends}: this process holds the Steam lobbies and P2P sessions,
+ * and relays the raw messages of every Steam user to one of several backend servers running {@link GatewayTransport}.
+ * Every backend gets its own lobby; users are routed to the backend of the lobby they entered.
+ * Backends do all the decoding, batching and game logic, so the gateway only copies bytes. A backend is only relayed to
+ * once the gateway answered its {@link GatewayLink#challenge} with {@link SConfig#gatewaySecret}. Runs on the game thread.
+ */
+public class Gateway implements ApplicationListener, GatewayLink.FrameHandler{
+    /** Time between two connection attempts to a backend. */
+    static final long retryInterval = 5000;
+
+    final SNet owner;
+    final Seq<Backend> backends = new Seq<>();
+    /** Backend of every Steam user that was routed, by native ID. */
+    final LongMap<Backend> routes = new LongMap<>();
+    /** Backend of every lobby, by native ID. */
+    final LongMap<Backend> lobbies = new LongMap<>();
+    /** Backends waiting for {@link SNet#onLobbyCreated}, in the order the lobbies were requested. */
+    final ArrayDeque<Backend> creating = new ArrayDeque<>();
+    /** Steam only sends from direct buffers. */
+    final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(16384);
+
+    public Gateway(SNet owner, String addresses){
+        this.owner = owner;
+        for(String address : addresses.split(",")){
+            address = address.trim();
+            if(address.isEmpty()) continue;
+
+            int colon = address.lastIndexOf(':');
+            backends.add(new Backend(colon == -1 ? address : address.substring(0, colon), colon == -1 ? 6568 : Integer.parseInt(address.substring(colon + 1))));
+        }
+        Log.info("Steam gateway for @ backends.", backends.size);
+    }
+
+    @Override
+    public void update(){
+        for(Backend backend : backends){
+            try{
+                backend.update();
+            }catch(IOException e){
+                Log.err("Lost backend @.", backend);
+                Log.err(e);
+                lost(backend);
+            }
+        }
+    }
+
+    /** Sends what was relayed during this tick. */
+    void flush(){
+        for(int i = 0; i < backends.size; i++){
+            Backend backend = backends.get(i);
+            if(backend.link == null) continue;
+            try{
+                backend.link.flush();
+            }catch(IOException e){
+                Log.err("Lost backend @.", backend);
+                Log.err(e);
+                lost(backend);
+            }
+        }
+    }
+
+    /** Forwards a message a Steam user sent. */
+    void relay(long from, int channel, ByteBuffer data){
+        Backend backend = route(from);
+        if(backend == null) return;
+
+        try{
+            backend.link.write(GatewayLink.message, from, channel, data);
+        }catch(IOException e){
+            Log.err("Lost backend @.", backend);
+            Log.err(e);
+            lost(backend);
+        }
+    }
+
+    /** @return the backend a user talks to, picking the least busy one for users that weren't seen entering a lobby. */
+    Backend route(long user){
+        Backend backend = routes.get(user);
+        if(backend != null && backend.link != null) return backend;
+
+        backend = null;
+        for(int i = 0; i < backends.size; i++){
+            Backend other = backends.get(i);
+            if(other.link != null && (backend == null || other.users < backend.users)) backend = other;
+        }
+        if(backend != null) assign(user, backend);
+        return backend;
+    }
+
+    void assign(long user, Backend backend){
+        Backend previous = routes.put(user, backend);
+        if(previous != null) previous.users--;
+        backend.users++;
+    }
+
+    /** A user entered one of the lobbies. */
+    void entered(SteamID lobby, SteamID user){
+        Backend backend = lobbies.get(lobby.handle());
+        if(backend != null && routes.get(user.handle()) != backend) assign(user.handle(), backend);
+    }
+
+    /** A user left or lost the session; the backend is told and the route forgotten. */
+    void left(SteamID user){
+        Backend backend = routes.remove(user.handle());
+        if(backend == null) return;
+
+        backend.users--;
+        owner.transport.closeSession(user);
+        if(backend.link != null) write(backend, GatewayLink.closed, user.handle(), 0);
+    }
+
+    void lobbyCreated(SteamResult result, SteamID lobby){
+        Backend backend = creating.poll();
+        if(backend == null){
+            owner.transport.leaveLobby(lobby);
+            return;
+        }
+
+        boolean success = result == SteamResult.OK;
+        if(success){
+            backend.lobby = lobby;
+            lobbies.put(lobby.handle(), backend);
+            Log.info("Lobby @ created for backend @.", lobby.getAccountID(), backend);
+        }else{
+            Log.err("Failed to create a lobby for backend @: @", backend, result);
+        }
+        if(backend.link != null) write(backend, GatewayLink.lobbyCreated, lobby.handle(), success ? 1 : 0);
+    }
+
+    void validated(SteamID user, AuthSessionResponse response){
+        Backend backend = routes.get(user.handle());
+        if(backend != null && backend.link != null) write(backend, GatewayLink.authResult, user.handle(), response.ordinal());
+    }
+
+    @Override
+    public void frame(GatewayLink link, int type, long peer, int arg, ByteBuffer payload) throws IOException{
+        Backend backend = null;
+        for(int i = 0; i < backends.size; i++){
+            if(backends.get(i).link == link || backends.get(i).handshake == link) backend = backends.get(i);
+        }
+        if(backend == null) return;
+
+        if(backend.handshake == link){
+            if(type != GatewayLink.challenge) throw new IOException("Expected a challenge, got frame " + type);
+
+            byte[] challenge = new byte[payload.remaining()];
+            payload.get(challenge);
+            link.write(GatewayLink.answer, 0, 0, GatewayLink.sign(challenge));
+            link.trusted = true;
+            backend.link = link;
+            backend.handshake = null;
+            Log.info("Connected to backend @.", backend);
+            return;
+        }
+
+        SteamID id = SteamID.createFromNativeHandle(peer);
+        try{
+            switch(type){
+                case GatewayLink.message:
+                    ByteBuffer buffer = payload.remaining() <= sendBuffer.capacity() ? sendBuffer : owner.buffers.acquire(payload.remaining());
+                    try{
+                        buffer.position(0).limit(buffer.capacity());
+                        buffer.put(payload).flip();
+                        owner.sendP2P(id, buffer, P2PSend.values()[(arg >> 4) & 0xf], arg & 0xf);
+                    }finally{
+                        if(buffer != sendBuffer) owner.buffers.release(buffer);
+                    }
+                    break;
+                case GatewayLink.close:
+                    left(id);
+                    break;
+                case GatewayLink.createLobby:
+                    int limit = payload.getInt();
+                    if(backend.lobby != null){
+                        //a backend that reconnected gets its old lobby back
+                        write(backend, GatewayLink.lobbyCreated, backend.lobby.handle(), 1);
+                        owner.transport.setLobbyMemberLimit(backend.lobby, limit);
+                    }else{
+                        creating.add(backend);
+                        owner.transport.createLobby(LobbyType.Public, limit);
+                    }
+                    break;
+                case GatewayLink.lobbyData:
+                    String entry = GatewayLink.string(payload);
+                    int split = entry.indexOf('\0');
+                    if(backend.lobby != null && split != -1){
+                        owner.transport.setLobbyData(backend.lobby, entry.substring(0, split), entry.substring(split + 1));
+                    }
+                    break;
+                case GatewayLink.lobbyLimit:
+                    if(backend.lobby != null) owner.transport.setLobbyMemberLimit(backend.lobby, payload.getInt());
+                    break;
+                case GatewayLink.leaveLobby:
+                    if(backend.lobby != null){
+                        owner.transport.leaveLobby(backend.lobby);
+                        lobbies.remove(backend.lobby.handle());
+                        backend.lobby = null;
+                    }
+                    break;
+                case GatewayLink.beginAuth:
+                    ByteBuffer ticket = ByteBuffer.allocateDirect(payload.remaining());
+                    ticket.put(payload).flip();
+                    BeginAuthSessionResult result = owner.transport.beginAuthSession(ticket, id);
+                    if(result != BeginAuthSessionResult.OK) write(backend, GatewayLink.authResult, peer, AuthSessionResponse.AuthTicketInvalid.ordinal());
+                    break;
+                case GatewayLink.endAuth:
+                    owner.transport.endAuthSession(id);
+                    break;
+                default:
+                    Log.warn("Unknown frame @ from backend @", type, backend);
+            }
+        }catch(Exception e){
+            Log.err("Failed to handle frame @ from backend @.", type, backend);
+            Log.err(e);
+        }
+    }
+
+    void write(Backend backend, int type, long peer, int arg){
+        try{
+            backend.link.write(type, peer, arg);
+        }catch(IOException e){
+            Log.err("Lost backend @.", backend);
+            Log.err(e);
+            lost(backend);
+        }
+    }
+
+    /** Drops every user of a backend that went away. The lobby is kept for when it comes back. */
+    void lost(Backend backend){
+        if(backend.link != null){
+            backend.link.close();
+            backend.link = null;
+        }
+        if(backend.handshake != null){
+            backend.handshake.close();
+            backend.handshake = null;
+        }
+        backend.nextAttempt = Time.millis() + retryInterval;
+        creating.remove(backend);
+
+        Iterator<LongMap.Entry<Backend>> it = routes.entries();
+        while(it.hasNext()){
+            LongMap.Entry<Backend> entry = it.next();
+            if(entry.value != backend) continue;
+
+            it.remove();
+            owner.transport.closeSession(SteamID.createFromNativeHandle(entry.key));
+        }
+        backend.users = 0;
+    }
+
+    class Backend{
+        final String host;
+        final int port;
+        SocketChannel connecting;
+        /** Connection waiting for the backend's challenge; becomes {@link #link} once it is answered. */
+        GatewayLink handshake;
+        GatewayLink link;
+        SteamID lobby;
+        int users;
+        long nextAttempt;
+
+        Backend(String host, int port){
+            this.host = host;
+            this.port = port;
+        }
+
+        void update() throws IOException{
+            if(handshake != null){
+                if(Time.timeSinceMillis(handshake.opened) > GatewayLink.handshakeTimeout) throw new IOException("No challenge from the backend");
+                handshake.flush();
+                if(!handshake.read(Gateway.this)) throw new IOException("Connection closed");
+                if(link == null) return;
+            }
+            if(link == null){
+                connect();
+                return;
+            }
+
+            link.flush();
+            if(!link.read(Gateway.this)) throw new IOException("Connection closed");
+        }
+
+        /** Connects without blocking the game thread. */
+        void connect(){
+            try{
+                if(connecting == null){
+                    if(Time.millis() < nextAttempt) return;
+                    nextAttempt = Time.millis() + retryInterval;
+                    connecting = SocketChannel.open();
+                    connecting.configureBlocking(false);
+                    connecting.connect(new InetSocketAddress(host, port));
+                }
+
+                if(connecting.finishConnect()){
+                    handshake = new GatewayLink(connecting);
+                    connecting = null;
+                }
+            }catch(IOException e){
+                Log.debug("Backend @ is not reachable: @", this, e.getMessage());
+                try{
+                    connecting.close();
+                }catch(Exception ignored){
+                }
+                connecting = null;
+            }
+        }
+
+        @Override
+        public String toString(){
+            return host + ":" + port;
+        }
+    }
+}
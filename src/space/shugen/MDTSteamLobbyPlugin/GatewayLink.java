@@ -0,0 +1,213 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.util.Time;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * One TCP connection between a {@link Gateway} and a backend's {@link GatewayTransport}, non-blocking and polled.
+ * Frames are {@code [u8 type][i64 peer][u8 arg][i32 length][payload]}; the peer is a native Steam ID of a user or lobby.
+ * Writes are buffered and sent by {@link #flush()}; a peer that doesn't keep up is dropped once {@link #maxBuffered} is reached.
+ * A backend starts every link with a {@link #challenge} and ignores the gateway until it {@link #answer}s it with the
+ * HMAC-SHA256 of the challenge keyed with {@link SConfig#gatewaySecret}, so only a gateway that knows the secret can relay.
+ */
+public class GatewayLink{
+    /** A P2P message. Arg is the channel, plus the send mode times 16 from a backend. */
+    public static final int message = 0;
+    /** Backend to gateway: close the session with a user. */
+    public static final int close = 1;
+    /** Gateway to backend: the session with a user is gone. */
+    public static final int closed = 2;
+    /** Backend to gateway: create a lobby, payload is the member limit. */
+    public static final int createLobby = 3;
+    /** Gateway to backend: the lobby was created, the peer is its ID, arg is 1 on success. */
+    public static final int lobbyCreated = 4;
+    /** Backend to gateway: payload is the key and the value, separated by a zero byte. */
+    public static final int lobbyData = 5;
+    /** Backend to gateway: payload is the member limit. */
+    public static final int lobbyLimit = 6;
+    /** Backend to gateway: leave the lobby. */
+    public static final int leaveLobby = 7;
+    /** Backend to gateway: validate the auth ticket in the payload. */
+    public static final int beginAuth = 8;
+    /** Gateway to backend: arg is the {@link com.codedisaster.steamworks.SteamAuth.AuthSessionResponse} ordinal. */
+    public static final int authResult = 9;
+    /** Backend to gateway: end the auth session with a user. */
+    public static final int endAuth = 10;
+    /** Backend to gateway, first on every link: payload is {@link #challengeSize} random bytes. */
+    public static final int challenge = 11;
+    /** Gateway to backend: payload is {@link #sign} of the challenge. */
+    public static final int answer = 12;
+
+    public static final int headerSize = 14;
+    /** Steam's reliable messages are at most 1 MB. */
+    public static final int maxPayload = 1024 * 1024 + 64;
+    public static final int maxBuffered = 64 * 1024 * 1024;
+    /** Size of the link buffers, which grow for large frames and shrink back afterwards. */
+    public static final int bufferSize = 64 * 1024;
+    public static final int challengeSize = 32;
+    /** How long the other end has to complete the challenge before the link is closed, in milliseconds. */
+    public static final long handshakeTimeout = 5000;
+
+    final SocketChannel channel;
+    ByteBuffer in = ByteBuffer.allocate(bufferSize), out = ByteBuffer.allocate(bufferSize);
+    boolean closedLink;
+    /** Whether the other end answered the challenge; always true on the gateway's side. */
+    boolean trusted;
+    /** Challenge this end sent, until it is answered. */
+    byte[] sentChallenge;
+    final long opened = Time.millis();
+
+    public GatewayLink(SocketChannel channel) throws IOException{
+        this.channel = channel;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    public void write(int type, long peer, int arg, ByteBuffer payload) throws IOException{
+        int length = payload == null ? 0 : payload.remaining();
+        reserve(headerSize + length);
+        out.put((byte)type).putLong(peer).put((byte)arg).putInt(length);
+        if(payload != null){
+            int position = payload.position();
+            out.put(payload);
+            payload.position(position);
+        }
+    }
+
+    public void write(int type, long peer, int arg, byte[] payload) throws IOException{
+        write(type, peer, arg, ByteBuffer.wrap(payload));
+    }
+
+    public void write(int type, long peer, int arg) throws IOException{
+        write(type, peer, arg, (ByteBuffer)null);
+    }
+
+    public void writeInt(int type, long peer, int value) throws IOException{
+        reserve(headerSize + 4);
+        out.put((byte)type).putLong(peer).put((byte)0).putInt(4).putInt(value);
+    }
+
+    public void writeData(long lobby, String key, String value) throws IOException{
+        write(lobbyData, lobby, 0, (key + "\0" + value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    void reserve(int bytes) throws IOException{
+        if(out.remaining() >= bytes) return;
+        flush();
+        if(out.remaining() >= bytes) return;
+
+        if(out.position() + bytes > maxBuffered) throw new IOException("Gateway link is not keeping up");
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+        out.flip();
+        larger.put(out);
+        out = larger;
+    }
+
+    /** Sends as much of the buffered output as the socket takes. */
+    public void flush() throws IOException{
+        if(out.position() == 0) return;
+        out.flip();
+        try{
+            channel.write(out);
+        }finally{
+            out.compact();
+        }
+    }
+
+    /**
+     * Reads what arrived and hands every complete frame to the handler. The payload buffer is only valid during the call.
+     * @return false once the connection is closed.
+     */
+    public boolean read(FrameHandler handler) throws IOException{
+        if(closedLink) return false;
+        if(channel.read(in) < 0){
+            closedLink = true;
+            return false;
+        }
+
+        in.flip();
+        while(in.remaining() >= headerSize){
+            int start = in.position();
+            int length = in.getInt(start + 10);
+            if(length < 0 || length > maxPayload) throw new IOException("Invalid gateway frame of " + length + " bytes");
+
+            if(in.remaining() < headerSize + length){
+                if(headerSize + length > in.capacity()){
+                    ByteBuffer larger = ByteBuffer.allocate(headerSize + length);
+                    larger.put(in);
+                    in = larger;
+                    return true;
+                }
+                break;
+            }
+
+            int type = in.get(start);
+            long peer = in.getLong(start + 1);
+            int arg = in.get(start + 9) & 0xff;
+            int end = start + headerSize + length;
+            int limit = in.limit();
+
+            in.limit(end).position(start + headerSize);
+            try{
+                handler.frame(this, type, peer, arg, in);
+            }finally{
+                in.limit(limit).position(end);
+            }
+        }
+        in.compact();
+
+        //a link keeps its buffer for as long as it lives, so one large frame mustn't pin a megabyte
+        if(in.capacity() > bufferSize && (in.position() < headerSize || headerSize + in.getInt(10) <= bufferSize)){
+            ByteBuffer smaller = ByteBuffer.allocate(bufferSize);
+            in.flip();
+            smaller.put(in);
+            in = smaller;
+        }
+        return true;
+    }
+
+    public void close(){
+        closedLink = true;
+        try{
+            channel.close();
+        }catch(IOException ignored){
+        }
+    }
+
+    /** @return the HMAC-SHA256 of a challenge keyed with {@link SConfig#gatewaySecret}, or nothing without a secret. */
+    static byte[] sign(byte[] challenge){
+        if(SConfig.gatewaySecret.isEmpty()) return new byte[0];
+        try{
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(SConfig.gatewaySecret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac.doFinal(challenge);
+        }catch(GeneralSecurityException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** @return whether an answer is the right one for the challenge this end sent. */
+    boolean verify(ByteBuffer answer){
+        byte[] bytes = new byte[answer.remaining()];
+        answer.get(bytes);
+        return sentChallenge != null && MessageDigest.isEqual(bytes, sign(sentChallenge));
+    }
+
+    static String string(ByteBuffer payload){
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public interface FrameHandler{
+        void frame(GatewayLink link, int type, long peer, int arg, ByteBuffer payload) throws IOException;
+    }
+}
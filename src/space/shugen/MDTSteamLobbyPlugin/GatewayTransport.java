@@ -0,0 +1,424 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.Core;
+import arc.struct.LongMap;
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.*;
+import com.codedisaster.steamworks.SteamAuth.AuthSessionResponse;
+import com.codedisaster.steamworks.SteamAuth.BeginAuthSessionResult;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyDistanceFilter;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import com.codedisaster.steamworks.SteamNetworking.P2PSessionError;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * {@link P2PTransport} of a backend server behind a {@link Gateway}: Steam users and lobbies live in the gateway process,
+ * which relays their P2P messages over TCP. Listens on {@link SConfig#gatewayListen}; needs no Steam client.
+ * A gateway is only listened to once it answered the {@link GatewayLink#challenge} with {@link SConfig#gatewaySecret};
+ * without a secret, only gateways on the same machine are let in.
+ * Sockets are polled whenever the receive loop asks for messages; callbacks are posted to the game thread.
+ * Relayed messages wait in pooled buffers, at most {@link SConfig#ioQueueSize} messages and {@link GatewayLink#maxBuffered}
+ * bytes per channel; a gateway that sends faster than the receive loop reads loses what is over that, counted as flood drops.
+ */
+public class GatewayTransport implements P2PTransport, GatewayLink.FrameHandler{
+    final SNet owner;
+    final ServerSocketChannel server;
+    final Seq<GatewayLink> links = new Seq<>();
+    /** Gateway each user was last heard from. */
+    final LongMap<GatewayLink> routes = new LongMap<>();
+    /** Sessions of users that are known to be connected. */
+    final LongMap<PeerState> sessions = new LongMap<>();
+    final ArrayDeque<Message>[] inbound;
+    /** Bytes waiting in each of {@link #inbound}. */
+    final long[] inboundBytes = new long[Channels.count];
+    final SecureRandom random = new SecureRandom();
+    /** Gateway that created the current lobby. */
+    GatewayLink lobbyLink;
+    SteamID lobby;
+    /** Member limit of the lobby this server wants, or -1 while it doesn't host one. */
+    int lobbyLimit = -1;
+
+    /** @param host address to listen on, or empty for every interface. */
+    @SuppressWarnings("unchecked")
+    public GatewayTransport(SNet owner, String host, int port){
+        this.owner = owner;
+        this.inbound = new ArrayDeque[Channels.count];
+        for(int i = 0; i < inbound.length; i++){
+            inbound[i] = new ArrayDeque<>();
+        }
+
+        try{
+            server = ServerSocketChannel.open();
+            server.configureBlocking(false);
+            server.bind(host.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(host, port));
+        }catch(IOException e){
+            throw new RuntimeException("Failed to listen for gateways on " + host + ":" + port, e);
+        }
+        Log.info("Waiting for Steam gateways on @:@.", host.isEmpty() ? "*" : host, port);
+    }
+
+    /** Accepts new gateways and reads what they sent. */
+    synchronized void poll(){
+        try{
+            SocketChannel accepted;
+            while((accepted = server.accept()) != null){
+                InetSocketAddress address = (InetSocketAddress)accepted.getRemoteAddress();
+                if(SConfig.gatewaySecret.isEmpty() && !address.getAddress().isLoopbackAddress()){
+                    Log.warn("Refused a Steam gateway from @: set steam-gateway-secret to let in gateways on other machines.", address);
+                    accepted.close();
+                    continue;
+                }
+
+                Log.info("Steam gateway connected from @, waiting for it to authenticate.", address);
+                GatewayLink link = new GatewayLink(accepted);
+                link.sentChallenge = new byte[GatewayLink.challengeSize];
+                random.nextBytes(link.sentChallenge);
+                link.write(GatewayLink.challenge, 0, 0, link.sentChallenge);
+                links.add(link);
+            }
+        }catch(IOException e){
+            Log.err("Failed to accept Steam gateway.");
+            Log.err(e);
+        }
+
+        for(int i = links.size - 1; i >= 0; i--){
+            GatewayLink link = links.get(i);
+            try{
+                link.flush();
+                if(!link.trusted && Time.timeSinceMillis(link.opened) > GatewayLink.handshakeTimeout){
+                    Log.warn("Steam gateway did not authenticate in time, closing the link.");
+                }else if(link.read(this)){
+                    continue;
+                }
+            }catch(IOException e){
+                Log.err("Steam gateway link failed.");
+                Log.err(e);
+            }
+            lost(link);
+        }
+    }
+
+    /** A gateway went away; every user that came through it is gone too. */
+    void lost(GatewayLink link){
+        link.close();
+        links.remove(link, true);
+        if(lobbyLink == link) lobbyLink = null;
+
+        Iterator<LongMap.Entry<GatewayLink>> it = routes.entries();
+        while(it.hasNext()){
+            LongMap.Entry<GatewayLink> entry = it.next();
+            if(entry.value != link) continue;
+
+            long peer = entry.key;
+            it.remove();
+            sessions.remove(peer);
+            Core.app.post(() -> owner.onP2PSessionConnectFail(SteamID.createFromNativeHandle(peer), P2PSessionError.Timeout));
+        }
+    }
+
+    @Override
+    public void frame(GatewayLink link, int type, long peer, int arg, ByteBuffer payload) throws IOException{
+        if(!link.trusted){
+            //nothing a gateway says counts before it proved it knows the secret
+            if(type != GatewayLink.answer || !link.verify(payload)) throw new IOException("Steam gateway failed to authenticate");
+
+            link.trusted = true;
+            link.sentChallenge = null;
+            Log.info("Steam gateway authenticated.");
+            //a lobby lost with its gateway comes back through the next one
+            if(lobbyLimit >= 0 && lobbyLink == null) requestLobby(link);
+            return;
+        }
+
+        switch(type){
+            case GatewayLink.message:
+                routes.put(peer, link);
+                if(!sessions.containsKey(peer)){
+                    PeerState state = new PeerState();
+                    state.active = true;
+                    sessions.put(peer, state);
+                }
+                int channel = Math.min(arg & 0xf, Channels.count - 1), length = payload.remaining();
+                if(inbound[channel].size() >= SConfig.ioQueueSize || inboundBytes[channel] + length > GatewayLink.maxBuffered || length > BufferArena.maxSize){
+                    owner.stats.floodDropped.increment();
+                    break;
+                }
+                ByteBuffer data = owner.heapBuffers.acquire(length);
+                data.put(payload).flip();
+                inbound[channel].add(new Message(peer, data));
+                inboundBytes[channel] += length;
+                break;
+            case GatewayLink.closed:
+                if(sessions.remove(peer) != null){
+                    Core.app.post(() -> owner.onP2PSessionConnectFail(SteamID.createFromNativeHandle(peer), P2PSessionError.Timeout));
+                }
+                break;
+            case GatewayLink.lobbyCreated:
+                SteamID id = SteamID.createFromNativeHandle(peer);
+                boolean success = arg == 1;
+                if(success){
+                    lobby = id;
+                    lobbyLink = link;
+                }
+                Core.app.post(() -> owner.onLobbyCreated(success ? SteamResult.OK : SteamResult.Fail, id));
+                break;
+            case GatewayLink.authResult:
+                AuthSessionResponse[] responses = AuthSessionResponse.values();
+                AuthSessionResponse response = arg < responses.length ? responses[arg] : AuthSessionResponse.AuthTicketInvalid;
+                Core.app.post(() -> owner.onValidateAuthTicket(SteamID.createFromNativeHandle(peer), response, SteamID.createFromNativeHandle(peer)));
+                break;
+            default:
+                Log.warn("Unknown gateway frame @", type);
+        }
+    }
+
+    /** @return the gateway of a user, or of the lobby if the user wasn't heard from yet. */
+    GatewayLink link(long peer){
+        GatewayLink link = routes.get(peer);
+        return link != null ? link : lobbyLink;
+    }
+
+    @Override
+    public synchronized boolean send(SteamID to, ByteBuffer data, P2PSend mode, int channel) throws SteamException{
+        GatewayLink link = link(to.handle());
+        if(link == null) return false;
+
+        try{
+            link.write(GatewayLink.message, to.handle(), channel | (mode.ordinal() << 4), data);
+            return true;
+        }catch(IOException e){
+            throw new SteamException("Gateway link failed: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public synchronized void flush(){
+        for(int i = links.size - 1; i >= 0; i--){
+            try{
+                links.get(i).flush();
+            }catch(IOException e){
+                Log.err("Steam gateway link failed.");
+                Log.err(e);
+                lost(links.get(i));
+            }
+        }
+    }
+
+    @Override
+    public synchronized int available(int channel){
+        if(inbound[channel].isEmpty()) poll();
+        Message message = inbound[channel].peek();
+        return message == null ? 0 : message.data.remaining();
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer dest, int channel) throws SteamException{
+        Message message = inbound[channel].poll();
+        if(message == null) throw new SteamException("No message available on channel " + channel);
+        int length = message.data.remaining();
+        inboundBytes[channel] -= length;
+        try{
+            if(length > dest.remaining()) throw new SteamException("Buffer too small for message of " + length + " bytes");
+
+            int start = dest.position();
+            dest.put(message.data);
+            dest.limit(dest.position()).position(start);
+            return message.from;
+        }finally{
+            owner.heapBuffers.release(message.data);
+        }
+    }
+
+    /** The gateway accepted the session already. */
+    @Override
+    public boolean acceptSession(SteamID peer){
+        return true;
+    }
+
+    @Override
+    public synchronized boolean closeSession(SteamID peer){
+        sessions.remove(peer.handle());
+        GatewayLink link = routes.remove(peer.handle());
+        if(link == null) return false;
+        write(link, GatewayLink.close, peer.handle());
+        return true;
+    }
+
+    @Override
+    public synchronized boolean getSessionState(SteamID peer, PeerState out){
+        PeerState state = sessions.get(peer.handle());
+        if(state == null){
+            out.reset();
+            return false;
+        }
+
+        out.active = true;
+        out.connecting = false;
+        out.relay = true;
+        //the gateway's Steam queue is not visible from here, only what waits for the socket
+        GatewayLink link = routes.get(peer.handle());
+        out.bytesQueued = link == null ? 0 : link.out.position();
+        out.packetsQueued = 0;
+        out.error = P2PSessionError.None;
+        return true;
+    }
+
+    /** The lobby is created by whichever gateway is connected, now or later. */
+    @Override
+    public synchronized void createLobby(LobbyType type, int maxMembers){
+        lobbyLimit = maxMembers;
+        GatewayLink link = links.find(l -> l.trusted);
+        if(link == null){
+            Log.warn("No Steam gateway connected, the lobby will be created once one is.");
+        }else{
+            requestLobby(link);
+        }
+    }
+
+    void requestLobby(GatewayLink link){
+        lobbyLink = link;
+        try{
+            link.writeInt(GatewayLink.createLobby, 0, lobbyLimit);
+            link.flush();
+        }catch(IOException e){
+            Log.err("Failed to ask the Steam gateway for a lobby.");
+            Log.err(e);
+        }
+    }
+
+    @Override
+    public void joinLobby(SteamID lobby){
+        //a backend never joins lobbies
+    }
+
+    @Override
+    public synchronized void leaveLobby(SteamID lobby){
+        if(lobbyLink != null) write(lobbyLink, GatewayLink.leaveLobby, lobby.handle());
+        this.lobby = null;
+        lobbyLimit = -1;
+    }
+
+    @Override
+    public void requestLobbyList(int maxResults, LobbyDistanceFilter distance){
+        Core.app.post(() -> owner.onLobbyMatchList(0));
+    }
+
+    @Override
+    public SteamID getLobbyByIndex(int index){
+        return null;
+    }
+
+    @Override
+    public String getLobbyData(SteamID lobby, String key){
+        return "";
+    }
+
+    @Override
+    public synchronized boolean setLobbyData(SteamID lobby, String key, String value){
+        if(lobbyLink == null) return false;
+        try{
+            lobbyLink.writeData(lobby.handle(), key, value);
+            return true;
+        }catch(IOException e){
+            return false;
+        }
+    }
+
+    @Override
+    public void setLobbyType(SteamID lobby, LobbyType type){
+        //gateway lobbies are always public
+    }
+
+    @Override
+    public synchronized void setLobbyMemberLimit(SteamID lobby, int limit){
+        if(lobbyLink == null) return;
+        try{
+            lobbyLink.writeInt(GatewayLink.lobbyLimit, lobby.handle(), limit);
+        }catch(IOException e){
+            Log.err(e);
+        }
+    }
+
+    @Override
+    public int getNumLobbyMembers(SteamID lobby){
+        return sessions.size;
+    }
+
+    @Override
+    public int getLobbyMemberLimit(SteamID lobby){
+        return 0;
+    }
+
+    @Override
+    public SteamID getLobbyOwner(SteamID lobby){
+        return null;
+    }
+
+    @Override
+    public synchronized BeginAuthSessionResult beginAuthSession(ByteBuffer ticket, SteamID peer){
+        GatewayLink link = link(peer.handle());
+        if(link == null) return BeginAuthSessionResult.InvalidTicket;
+        try{
+            link.write(GatewayLink.beginAuth, peer.handle(), 0, ticket);
+            return BeginAuthSessionResult.OK;
+        }catch(IOException e){
+            return BeginAuthSessionResult.InvalidTicket;
+        }
+    }
+
+    @Override
+    public synchronized void endAuthSession(SteamID peer){
+        GatewayLink link = routes.get(peer.handle());
+        if(link != null) write(link, GatewayLink.endAuth, peer.handle());
+    }
+
+    void write(GatewayLink link, int type, long peer){
+        try{
+            link.write(type, peer, 0);
+        }catch(IOException e){
+            Log.err("Steam gateway link failed.");
+            Log.err(e);
+        }
+    }
+
+    @Override
+    public synchronized void dispose(){
+        for(GatewayLink link : links){
+            link.close();
+        }
+        links.clear();
+        for(int i = 0; i < inbound.length; i++){
+            for(Message message : inbound[i]){
+                owner.heapBuffers.release(message.data);
+            }
+            inbound[i].clear();
+            inboundBytes[i] = 0;
+        }
+        try{
+            server.close();
+        }catch(IOException ignored){
+        }
+    }
+
+    static class Message{
+        final long from;
+        /** From {@link SNet#heapBuffers}, released once read. */
+        final ByteBuffer data;
+
+        Message(long from, ByteBuffer data){
+            this.from = from;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.util.Log;
+import arc.util.Time;
+
+/**
+ * Slows a server's Steam work down while nobody is on it. Once there has been no Steam connection for {@link SConfig#idleDelay},
+ * Steam callbacks run and P2P messages are polled only every {@link SConfig#idleInterval}, the I/O thread sleeps as long,
+ * and lobby metadata goes out at most every {@link SConfig#idleLobbyInterval}.
+ * A session request or a user entering the lobby wakes the server right away; those arrive through the callbacks,
+ * so they are noticed within one idle interval. Clients and gateways never idle.
+ * Game thread, except that {@link #idle} is read by the I/O thread.
+ */
+public class IdleScheduler{
+    final SNet owner;
+    volatile boolean idle;
+    long lastBusy = Time.millis(), lastCallbacks, lastPoll;
+
+    public IdleScheduler(SNet owner){
+        this.owner = owner;
+    }
+
+    /** @return whether the server is idle, as of the last {@link #update()}. */
+    public boolean idle(){
+        return idle;
+    }
+
+    /** Called at the start of every tick. */
+    void update(){
+        if(busy()) lastBusy = Time.millis();
+
+        boolean next = SConfig.idleDelay > 0 && Time.timeSinceMillis(lastBusy) > SConfig.idleDelay;
+        if(next && !idle) Log.info("No Steam connections for @ s, going idle.", SConfig.idleDelay / 1000);
+        idle = next;
+    }
+
+    boolean busy(){
+        return !owner.handler.server() || owner.gateway != null || owner.connections.size() > 0 || !owner.streamer.isEmpty();
+    }
+
+    /** Ends idling right away, because someone is about to connect. */
+    public void wake(){
+        lastBusy = Time.millis();
+        if(!idle) return;
+
+        idle = false;
+        lastPoll = 0;
+        Log.info("Steam activity, waking up.");
+        if(owner.io != null) owner.io.wake();
+    }
+
+    /** @return whether the Steam callbacks should run now. */
+    public boolean callbacksDue(){
+        if(!idle || Time.timeSinceMillis(lastCallbacks) >= SConfig.idleInterval){
+            lastCallbacks = Time.millis();
+            return true;
+        }
+        return false;
+    }
+
+    /** @return whether the receive loop should poll Steam now. */
+    public boolean pollDue(){
+        if(!idle || Time.timeSinceMillis(lastPoll) >= SConfig.idleInterval){
+            lastPoll = Time.millis();
+            return true;
+        }
+        return false;
+    }
+
+    /** @return the minimum time between two lobby metadata updates right now. */
+    public int lobbyInterval(){
+        return idle ? Math.max(SConfig.lobbyInterval, SConfig.idleLobbyInterval) : SConfig.lobbyInterval;
+    }
+}
@@ -0,0 +1,274 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.ApplicationListener;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamMatchmaking.ChatRoomEnterResponse;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import mindustry.net.Packets.Connect;
+import mindustry.net.Packets.Disconnect;
+import mindustry.net.Packets.StreamBegin;
+import mindustry.net.Packets.StreamChunk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static mindustry.Vars.net;
+
+/**
+ * Client side of joining a Steam lobby. Once the lobby is entered, the host is looked up in the lobby data,
+ * falling back to the lobby owner, and the P2P session is opened with {@link Frames#hello} messages while
+ * Mindustry is still waiting, which also settle the features to use; {@link Connect} is only handed to the game once Steam reports the session active,
+ * so the first real packets don't wait for NAT traversal. Hosts that don't advertise {@link #featuresKey}, like vanilla
+ * ones, would log an error for every frame they can't decode, so they get neither hellos nor auth tickets and are
+ * joined right away. The time of every phase is logged once the first snapshot after the world arrives.
+ */
+public class JoinPipeline implements ApplicationListener{
+    /** Lobby data key holding the native Steam ID of the user that runs the server. */
+    public static final String hostKey = "host";
+    /** Lobby data key holding the {@link Frames} features the host offers; only hosts running this plugin set it. */
+    public static final String featuresKey = "features";
+    /** Phases of a join, and of coming back after the session dropped. */
+    static final int idle = 0, entering = 1, warming = 2, loading = 3, resuming = 4;
+    /** Time between two hello messages while the session is not active. */
+    static final long helloInterval = 250;
+
+    final SNet owner;
+    final PeerState state = new PeerState();
+    final ByteBuffer hello = ByteBuffer.allocateDirect(Hello.size);
+    /** {@link Frames} features the host reads, as far as it told us. */
+    int features = SConfig.features();
+
+    int phase = idle;
+    SteamID lobby, host;
+    /** Whether the host runs this plugin and understands hellos and auth tickets. */
+    boolean pluginHost;
+    Runnable success;
+    long started, entered, active, connected, worldStarted, worldLoaded, lastHello, dropped;
+    int worldTotal, worldReceived;
+
+    public JoinPipeline(SNet owner){
+        this.owner = owner;
+    }
+
+    /** Starts joining a lobby; {@link #entered} is called when Steam answers. */
+    public void join(SteamID lobby, Runnable success){
+        cancel();
+        this.lobby = lobby;
+        this.success = success;
+        features = SConfig.features();
+        phase = entering;
+        started = Time.millis();
+        owner.transport.joinLobby(lobby);
+    }
+
+    /** Stops a join in progress, leaving the lobby if the game doesn't know about it yet. */
+    public void cancel(){
+        if(lobby != null && (phase == entering || phase == warming)) owner.transport.leaveLobby(lobby);
+        phase = idle;
+        lobby = host = null;
+        pluginHost = false;
+        success = null;
+        worldLoaded = 0;
+    }
+
+    /**
+     * The session with the host dropped: keeps the world and tries to reopen the session, if the host agreed to
+     * {@link Frames#featureResume} and the world was loaded. Until {@link SConfig#resumeGrace} runs out, the host
+     * keeps the player and holds back what happens meanwhile.
+     * @return whether the client is resuming rather than having to disconnect.
+     */
+    public boolean resumeSession(){
+        if(phase == resuming) return true;
+        if(phase != idle || host == null || worldLoaded == 0 || (features & Frames.featureResume) == 0) return false;
+
+        Log.info("Lost the session with @, resuming.", host.getAccountID());
+        phase = resuming;
+        dropped = Time.millis();
+        lastHello = 0;
+        update();
+        return true;
+    }
+
+    void entered(SteamID lobby, ChatRoomEnterResponse response){
+        if(phase != entering || !lobby.equals(this.lobby)) return;
+
+        if(response != ChatRoomEnterResponse.Success){
+            fail("Failed to join the lobby: " + response);
+            return;
+        }
+
+        entered = Time.millis();
+        host = host(lobby);
+        if(host == null){
+            fail("The lobby has no host.");
+            return;
+        }
+
+        String offered = owner.transport.getLobbyData(lobby, featuresKey);
+        pluginHost = offered != null && !offered.isEmpty();
+        if(!pluginHost){
+            //the first packet of the game opens the session, as it always did
+            Log.info("Entered lobby @, host @ doesn't run this plugin.", lobby.getAccountID(), host.getAccountID());
+            connect();
+            return;
+        }
+
+        Log.info("Entered lobby @, host is @.", lobby.getAccountID(), host.getAccountID());
+        phase = warming;
+        lastHello = 0;
+        update();
+    }
+
+    /** @return the user that runs the server, which is no longer the lobby owner once Steam hands the lobby to another member. */
+    SteamID host(SteamID lobby){
+        String value = owner.transport.getLobbyData(lobby, hostKey);
+        if(value != null && !value.isEmpty()){
+            try{
+                return SteamID.createFromNativeHandle(Long.parseLong(value));
+            }catch(NumberFormatException e){
+                Log.warn("Invalid host in lobby data: @", value);
+            }
+        }
+        return owner.transport.getLobbyOwner(lobby);
+    }
+
+    @Override
+    public void update(){
+        if(phase == entering && Time.timeSinceMillis(started) > SConfig.joinTimeout){
+            fail("Timed out joining the lobby.");
+        }else if(phase == warming){
+            if(owner.transport.getSessionState(host, state) && state.active){
+                connect();
+            }else if(Time.timeSinceMillis(entered) > SConfig.joinTimeout){
+                fail("Timed out connecting to the host.");
+            }else{
+                sayHello();
+            }
+        }else if(phase == resuming){
+            //done once the host answers
+            if(Time.timeSinceMillis(dropped) > SConfig.resumeGrace){
+                Log.info("Could not resume the session with @.", host.getAccountID());
+                phase = idle;
+                net.handleClientReceived(new Disconnect());
+            }else{
+                sayHello();
+            }
+        }
+    }
+
+    /** Sends a hello every {@link #helloInterval}, which also makes Steam open the session. */
+    void sayHello(){
+        if(Time.timeSinceMillis(lastHello) < helloInterval) return;
+        lastHello = Time.millis();
+        try{
+            Hello.write(hello, Hello.offered());
+            owner.sendP2P(host, hello, P2PSend.Reliable, Channels.control);
+            owner.flush();
+        }catch(Exception e){
+            if(phase == warming) fail(e.getMessage());
+        }
+    }
+
+    void connect(){
+        active = Time.millis();
+        phase = loading;
+        worldTotal = -1;
+        worldReceived = 0;
+        worldStarted = worldLoaded = 0;
+
+        owner.currentLobby = lobby;
+        owner.currentServer = host;
+        Runnable success = this.success;
+        this.success = null;
+        if(success != null) success.run();
+
+        Connect connect = new Connect();
+        connect.addressTCP = "steam:" + host.getAccountID();
+        net.setClientConnected();
+        net.handleClientReceived(connect);
+        connected = Time.millis();
+    }
+
+    /** Watches the packets of the server until the world is loaded and the first snapshot arrives. */
+    void received(Object packet){
+        if(phase != loading) return;
+
+        if(packet instanceof StreamBegin){
+            worldTotal = ((StreamBegin)packet).total;
+            worldStarted = Time.millis();
+        }else if(packet instanceof StreamChunk){
+            if(worldTotal >= 0 && (worldReceived += ((StreamChunk)packet).data.length) >= worldTotal) worldLoaded = Time.millis();
+        }else if(worldLoaded != 0 && Channels.isSnapshot(packet)){
+            long now = Time.millis();
+            Log.info("Joined @ in @ ms: lobby @ ms, session @ ms, connect @ ms, world @ ms, first snapshot @ ms.",
+                host.getAccountID(), now - started, entered - started, active - entered, connected - active,
+                worldLoaded - worldStarted, now - worldLoaded);
+            phase = idle;
+        }
+    }
+
+    /** The host answered a hello with the features it agreed to. */
+    void hello(Hello reply){
+        features = SConfig.features() | reply.accepted();
+        if(phase != resuming){
+            Log.info("Host @ reads features @.", host.getAccountID(), features);
+        }else if((reply.features & Hello.known) != 0){
+            Log.info("Resumed the session with @ after @ ms.", host.getAccountID(), Time.timeSinceMillis(dropped));
+            phase = idle;
+        }else{
+            Log.info("@ no longer knows this client, disconnecting.", host.getAccountID());
+            phase = idle;
+            net.handleClientReceived(new Disconnect());
+        }
+    }
+
+    void fail(String reason){
+        Log.err("Steam join failed: @", reason);
+        cancel();
+        net.showError(new IOException(reason));
+    }
+
+    /**
+     * A {@link Frames#hello} after the marker: the features the sender reads and the id of its {@link Compressor} dictionary.
+     * The client offers everything it reads, and the server answers with what it agreed to use; peers that never send one,
+     * like vanilla clients, get no feature they haven't used themselves.
+     */
+    static class Hello{
+        static final int size = 6;
+        /** Set in the features of an answer if the connection was already in the game, so a resuming client can stay. */
+        static final int known = 0x80;
+
+        final int features, dictionary;
+
+        Hello(int features, int dictionary){
+            this.features = features;
+            this.dictionary = dictionary;
+        }
+
+        /** @return the features offered to a peer. */
+        static int offered(){
+            return Frames.readable | (SConfig.compression ? Frames.featureCompression : 0) | (SConfig.resumeGrace > 0 ? Frames.featureResume : 0);
+        }
+
+        /** @return the features of this hello that both sides use. */
+        int accepted(){
+            int both = features & offered();
+            return dictionary == Compressor.dictionaryId ? both : both & ~Frames.featureCompression;
+        }
+
+        /** Leaves a hello with the given features flipped in the buffer. */
+        static void write(ByteBuffer buffer, int features){
+            buffer.position(0).limit(size);
+            buffer.put(Frames.hello).put((byte)features).putInt(Compressor.dictionaryId).flip();
+        }
+
+        /** @return the hello in a message, marker included, or null for the bare hello of older versions. */
+        static Hello read(ByteBuffer message){
+            if(message.remaining() < size) return null;
+            message.get();
+            return new Hello(message.get() & 0xff, message.getInt());
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.func.Cons;
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Strings;
+import arc.util.Time;
+import arc.util.Timer;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyDistanceFilter;
+import mindustry.Vars;
+import mindustry.game.Gamemode;
+import mindustry.net.Host;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds Steam lobbies and turns them into {@link Host}s. Results are cached for {@link SConfig#discoveryTtl},
+ * and requests made while a Steam query is running wait for that query instead of starting another one.
+ */
+public class LobbyDiscovery{
+    static final int maxResults = 32;
+
+    final SNet owner;
+    final Seq<Host> hosts = new Seq<>();
+    final Seq<Request> waiting = new Seq<>();
+
+    boolean querying;
+    /** Counts queries, so that the timeout of an old query does not end a newer one. */
+    int query;
+    long lastResult = -1;
+
+    public LobbyDiscovery(SNet owner){
+        this.owner = owner;
+    }
+
+    /** Reports every Steam lobby and every LAN server, then runs {@code done} once both searches have finished. */
+    public void discover(Cons<Host> callback, Runnable done){
+        Request request = new Request(callback, done);
+
+        //LAN discovery does not depend on Steam, so run both at the same time
+        owner.provider.discoverServers(callback, request::finish);
+
+        if(lastResult >= 0 && Time.timeSinceMillis(lastResult) < SConfig.discoveryTtl){
+            request.deliver(hosts);
+            return;
+        }
+
+        waiting.add(request);
+        if(!querying) query(null);
+    }
+
+    /** Starts a Steam query now, regardless of the cache. */
+    public void query(LobbyDistanceFilter distance){
+        querying = true;
+        int id = ++query;
+        owner.transport.requestLobbyList(maxResults, distance);
+
+        Timer.schedule(() -> {
+            if(querying && query == id){
+                Log.warn("Steam lobby list timed out.");
+                finish();
+            }
+        }, SConfig.discoveryTimeout / 1000f);
+    }
+
+    /** Called with the result of a Steam query. */
+    public void matched(int matches){
+        hosts.clear();
+        for(int i = 0; i < matches; i++){
+            SteamID lobby = owner.transport.getLobbyByIndex(i);
+            if(lobby != null) hosts.add(host(lobby));
+        }
+
+        lastResult = Time.millis();
+        Log.debug("Found @ Steam lobbies.", hosts.size);
+        finish();
+    }
+
+    void finish(){
+        querying = false;
+        //callbacks may start another discovery
+        Request[] requests = waiting.toArray(Request.class);
+        waiting.clear();
+        for(Request request : requests){
+            request.deliver(hosts);
+        }
+    }
+
+    Host host(SteamID lobby){
+        P2PTransport transport = owner.transport;
+        Gamemode mode;
+        try{
+            mode = Gamemode.valueOf(transport.getLobbyData(lobby, "gamemode"));
+        }catch(IllegalArgumentException e){
+            mode = Gamemode.survival;
+        }
+
+        return new Host(
+            -1, //lobbies can't be pinged
+            transport.getLobbyData(lobby, "name"),
+            "steam:" + lobby.handle(),
+            Vars.port,
+            transport.getLobbyData(lobby, "mapname"),
+            Strings.parseInt(transport.getLobbyData(lobby, "wave"), -1),
+            transport.getNumLobbyMembers(lobby),
+            Strings.parseInt(transport.getLobbyData(lobby, "version"), -1),
+            transport.getLobbyData(lobby, "versionType"),
+            mode,
+            transport.getLobbyMemberLimit(lobby),
+            "",
+            null
+        );
+    }
+
+    static class Request{
+        final Cons<Host> callback;
+        final Runnable done;
+        /** Searches still running: Steam and LAN. */
+        final AtomicInteger remaining = new AtomicInteger(2);
+
+        Request(Cons<Host> callback, Runnable done){
+            this.callback = callback;
+            this.done = done;
+        }
+
+        void deliver(Seq<Host> hosts){
+            for(Host host : hosts){
+                callback.get(host);
+            }
+            finish();
+        }
+
+        void finish(){
+            if(remaining.decrementAndGet() == 0) done.run();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.ApplicationListener;
+import arc.struct.ObjectMap;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
+
+/**
+ * Lobby metadata of the hosted lobby. Values are compared with what was last published,
+ * and only changed keys are sent, at most once per {@link SConfig#lobbyInterval}, or {@link SConfig#idleLobbyInterval} while idle.
+ */
+public class LobbyPublisher implements ApplicationListener{
+    final SNet owner;
+    final ObjectMap<String, String> published = new ObjectMap<>(), pending = new ObjectMap<>();
+
+    SteamID lobby;
+    boolean typeSet;
+    int memberLimit, pendingMemberLimit;
+    long lastFlush;
+
+    public LobbyPublisher(SNet owner){
+        this.owner = owner;
+    }
+
+    /** Starts over for a new lobby, or stops publishing if it is null. */
+    public void reset(SteamID lobby){
+        this.lobby = lobby;
+        published.clear();
+        pending.clear();
+        typeSet = false;
+        memberLimit = pendingMemberLimit = -1;
+        lastFlush = 0;
+    }
+
+    public void set(String key, String value){
+        if(value.equals(published.get(key))){
+            pending.remove(key);
+        }else{
+            pending.put(key, value);
+        }
+    }
+
+    public void setMemberLimit(int limit){
+        pendingMemberLimit = limit;
+    }
+
+    public boolean dirty(){
+        return !typeSet || pending.size > 0 || pendingMemberLimit != memberLimit;
+    }
+
+    @Override
+    public void update(){
+        if(lobby != null && dirty() && Time.timeSinceMillis(lastFlush) >= owner.idle.lobbyInterval()){
+            flush();
+        }
+    }
+
+    /** Sends every pending change now. */
+    public void flush(){
+        if(lobby == null) return;
+        lastFlush = Time.millis();
+
+        if(!typeSet){
+            owner.transport.setLobbyType(lobby, LobbyType.Public);
+            typeSet = true;
+        }
+
+        if(pendingMemberLimit != memberLimit && pendingMemberLimit >= 0){
+            owner.transport.setLobbyMemberLimit(lobby, pendingMemberLimit);
+            memberLimit = pendingMemberLimit;
+        }
+
+        if(pending.size == 0) return;
+
+        Log.debug("Publishing @ lobby keys.", pending.size);
+        for(ObjectMap.Entry<String, String> entry : pending){
+            owner.transport.setLobbyData(lobby, entry.key, entry.value);
+            published.put(entry.key, entry.value);
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,432 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.LongMap;
+import arc.struct.ObjectMap;
+import arc.struct.Seq;
+import com.codedisaster.steamworks.*;
+import com.codedisaster.steamworks.SteamMatchmaking.ChatMemberStateChange;
+import com.codedisaster.steamworks.SteamMatchmaking.ChatRoomEnterResponse;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyDistanceFilter;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import com.codedisaster.steamworks.SteamNetworking.P2PSessionError;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process {@link P2PTransport}. Every endpoint of a {@link Hub} acts as one Steam user;
+ * messages are copied between endpoints, unreliable ones are dropped at {@link Hub#lossRate}.
+ * Callbacks an endpoint causes for itself are invoked right away. Those caused by another endpoint, such as session requests
+ * and lost sessions, are queued and run by {@link #runCallbacks()} on the thread that owns the endpoint, like Steam does.
+ */
+public class LoopbackTransport implements P2PTransport{
+    /** Largest unreliable message Steam accepts. */
+    public static final int maxUnreliableSize = 1200;
+    /** Largest reliable message Steam accepts. */
+    public static final int maxReliableSize = 1024 * 1024;
+
+    public final Hub hub;
+    public final SteamID id;
+
+    final SteamNetworkingCallback networking;
+    final SteamMatchmakingCallback matchmaking;
+    /** Gets the answers to {@link #beginAuthSession}; may be null. */
+    final SteamUserCallback user;
+    final ConcurrentLinkedQueue<Message>[] inbound;
+    /** Peers with an open session, by native handle. */
+    final LongMap<PeerState> sessions = new LongMap<>();
+    final Seq<SteamID> lobbyList = new Seq<>();
+    /** Messages of peers whose session request wasn't answered yet, by native handle. */
+    final LongMap<Seq<Message>> pending = new LongMap<>();
+    final ConcurrentLinkedQueue<Runnable> callbacks = new ConcurrentLinkedQueue<>();
+
+    @SuppressWarnings("unchecked")
+    public LoopbackTransport(Hub hub, SteamNetworkingCallback networking, SteamMatchmakingCallback matchmaking, SteamUserCallback user){
+        this.hub = hub;
+        this.networking = networking;
+        this.matchmaking = matchmaking;
+        this.user = user;
+        this.inbound = new ConcurrentLinkedQueue[Channels.count];
+        for(int i = 0; i < inbound.length; i++){
+            inbound[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.id = hub.register(this);
+    }
+
+    /** Creates an endpoint whose owner is a {@link SNet}, for use with {@code new SNet(provider, s -> new LoopbackTransport(hub, s))}. */
+    public LoopbackTransport(Hub hub, SNet owner){
+        this(hub, owner, owner, owner);
+    }
+
+    @Override
+    public boolean send(SteamID to, ByteBuffer data, P2PSend mode, int channel) throws SteamException{
+        boolean reliable = mode == P2PSend.Reliable || mode == P2PSend.ReliableWithBuffering;
+        int length = data.remaining();
+        if(length > (reliable ? maxReliableSize : maxUnreliableSize)) return false;
+
+        LoopbackTransport target = hub.get(to.handle());
+        if(target == null) return false;
+
+        synchronized(this){
+            openSession(to.handle());
+        }
+
+        byte[] bytes = new byte[length];
+        data.get(bytes);
+        data.position(data.position() - length);
+
+        hub.sent.incrementAndGet();
+        if(!reliable && hub.lossRate > 0f && hub.random.nextFloat() < hub.lossRate){
+            hub.dropped.incrementAndGet();
+            return true;
+        }
+
+        target.deliver(id.handle(), bytes, channel);
+        return true;
+    }
+
+    void deliver(long from, byte[] bytes, int channel){
+        Message message = new Message(from, bytes, channel);
+        synchronized(this){
+            //like Steam, the messages of an unknown peer wait until its session request is accepted
+            if(!sessions.containsKey(from)){
+                Seq<Message> waiting = pending.get(from);
+                if(waiting == null){
+                    pending.put(from, waiting = new Seq<>());
+                    post(() -> networking.onP2PSessionRequest(SteamID.createFromNativeHandle(from)));
+                }
+                waiting.add(message);
+                return;
+            }
+        }
+
+        inbound[channel].add(message);
+    }
+
+    /** Queues a callback for {@link #runCallbacks()}. */
+    void post(Runnable callback){
+        callbacks.add(callback);
+    }
+
+    /** Runs the callbacks other endpoints caused since the last call. Call it from the thread that owns this endpoint. */
+    public void runCallbacks(){
+        Runnable callback;
+        while((callback = callbacks.poll()) != null){
+            callback.run();
+        }
+    }
+
+    @Override
+    public int available(int channel){
+        Message message = inbound[channel].peek();
+        return message == null ? 0 : message.data.length;
+    }
+
+    @Override
+    public long read(ByteBuffer dest, int channel) throws SteamException{
+        Message message = inbound[channel].poll();
+        if(message == null) throw new SteamException("No message available on channel " + channel);
+        if(message.data.length > dest.remaining()) throw new SteamException("Buffer too small for message of " + message.data.length + " bytes");
+
+        int start = dest.position();
+        dest.put(message.data);
+        dest.limit(dest.position()).position(start);
+        return message.from;
+    }
+
+    @Override
+    public synchronized boolean acceptSession(SteamID peer){
+        if(hub.get(peer.handle()) == null) return false;
+        openSession(peer.handle());
+
+        Seq<Message> waiting = pending.remove(peer.handle());
+        if(waiting != null){
+            for(Message message : waiting){
+                inbound[message.channel].add(message);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean closeSession(SteamID peer){
+        synchronized(this){
+            pending.remove(peer.handle());
+            if(sessions.remove(peer.handle()) == null) return false;
+        }
+
+        LoopbackTransport other = hub.get(peer.handle());
+        if(other != null) other.sessionLost(id.handle(), P2PSessionError.Timeout);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean getSessionState(SteamID peer, PeerState out){
+        PeerState state = sessions.get(peer.handle());
+        if(state == null){
+            out.reset();
+            return false;
+        }
+
+        out.active = state.active;
+        out.connecting = state.connecting;
+        out.relay = false;
+        out.bytesQueued = 0;
+        out.packetsQueued = 0;
+        out.error = state.error;
+        return true;
+    }
+
+    void openSession(long peer){
+        PeerState state = sessions.get(peer);
+        if(state == null){
+            sessions.put(peer, state = new PeerState());
+        }
+        state.active = true;
+    }
+
+    void sessionLost(long peer, P2PSessionError error){
+        synchronized(this){
+            if(sessions.remove(peer) == null) return;
+        }
+        post(() -> networking.onP2PSessionConnectFail(SteamID.createFromNativeHandle(peer), error));
+    }
+
+    @Override
+    public void createLobby(LobbyType type, int maxMembers){
+        Lobby lobby = hub.createLobby(this, type, maxMembers);
+        matchmaking.onLobbyCreated(SteamResult.OK, lobby.id);
+    }
+
+    @Override
+    public void joinLobby(SteamID lobbyID){
+        Lobby lobby = hub.lobby(lobbyID);
+        if(lobby == null){
+            matchmaking.onLobbyEnter(lobbyID, 0, false, ChatRoomEnterResponse.DoesntExist);
+            return;
+        }
+
+        synchronized(hub){
+            if(lobby.members.size >= lobby.limit){
+                matchmaking.onLobbyEnter(lobbyID, 0, false, ChatRoomEnterResponse.Full);
+                return;
+            }
+            lobby.members.add(this);
+        }
+
+        for(LoopbackTransport member : lobby.members.copy()){
+            if(member != this) member.post(() -> member.matchmaking.onLobbyChatUpdate(lobbyID, id, id, ChatMemberStateChange.Entered));
+        }
+        matchmaking.onLobbyEnter(lobbyID, 0, false, ChatRoomEnterResponse.Success);
+    }
+
+    @Override
+    public void leaveLobby(SteamID lobbyID){
+        Lobby lobby = hub.lobby(lobbyID);
+        if(lobby == null) return;
+
+        synchronized(hub){
+            if(!lobby.members.remove(this, true)) return;
+            if(lobby.owner == this) hub.lobbies.remove(lobbyID.handle());
+        }
+
+        for(LoopbackTransport member : lobby.members.copy()){
+            member.post(() -> member.matchmaking.onLobbyChatUpdate(lobbyID, id, id, ChatMemberStateChange.Left));
+        }
+    }
+
+    @Override
+    public void requestLobbyList(int maxResults, LobbyDistanceFilter distance){
+        synchronized(hub){
+            lobbyList.clear();
+            for(Lobby lobby : hub.lobbies.values()){
+                if(lobbyList.size >= maxResults) break;
+                if(lobby.type == LobbyType.Public) lobbyList.add(lobby.id);
+            }
+        }
+        matchmaking.onLobbyMatchList(lobbyList.size);
+    }
+
+    @Override
+    public SteamID getLobbyByIndex(int index){
+        return index < lobbyList.size ? lobbyList.get(index) : null;
+    }
+
+    @Override
+    public String getLobbyData(SteamID lobbyID, String key){
+        Lobby lobby = hub.lobby(lobbyID);
+        if(lobby == null) return "";
+        synchronized(hub){
+            return lobby.data.get(key, "");
+        }
+    }
+
+    @Override
+    public boolean setLobbyData(SteamID lobbyID, String key, String value){
+        Lobby lobby = hub.lobby(lobbyID);
+        if(lobby == null || lobby.owner != this) return false;
+        synchronized(hub){
+            lobby.data.put(key, value);
+        }
+        return true;
+    }
+
+    @Override
+    public void setLobbyType(SteamID lobbyID, LobbyType type){
+        Lobby lobby = hub.lobby(lobbyID);
+        if(lobby != null && lobby.owner == this) lobby.type = type;
+    }
+
+    @Override
+    public void setLobbyMemberLimit(SteamID lobbyID, int limit){
+        Lobby lobby = hub.lobby(lobbyID);
+        if(lobby != null && lobby.owner == this) lobby.limit = limit;
+    }
+
+    @Override
+    public int getNumLobbyMembers(SteamID lobbyID){
+        Lobby lobby = hub.lobby(lobbyID);
+        return lobby == null ? 0 : lobby.members.size;
+    }
+
+    @Override
+    public int getLobbyMemberLimit(SteamID lobbyID){
+        Lobby lobby = hub.lobby(lobbyID);
+        return lobby == null ? 0 : lobby.limit;
+    }
+
+    @Override
+    public SteamID getLobbyOwner(SteamID lobbyID){
+        Lobby lobby = hub.lobby(lobbyID);
+        return lobby == null ? null : lobby.owner.id;
+    }
+
+    @Override
+    public SteamID localUser(){
+        return id;
+    }
+
+    /** Tickets are the Steam ID of their user; they are valid as long as that user is registered with the hub. */
+    @Override
+    public boolean getAuthTicket(ByteBuffer dest){
+        if(dest.remaining() < 8) return false;
+        int start = dest.position();
+        dest.putLong(id.handle());
+        dest.limit(dest.position()).position(start);
+        return true;
+    }
+
+    /** Answers right away, on the calling thread. */
+    @Override
+    public SteamAuth.BeginAuthSessionResult beginAuthSession(ByteBuffer ticket, SteamID peer){
+        if(ticket.remaining() != 8) return SteamAuth.BeginAuthSessionResult.InvalidTicket;
+
+        long owner = ticket.getLong(ticket.position());
+        if(user != null){
+            user.onValidateAuthTicket(peer, owner == peer.handle() && hub.get(owner) != null ?
+                SteamAuth.AuthSessionResponse.OK : SteamAuth.AuthSessionResponse.AuthTicketInvalid, peer);
+        }
+        return SteamAuth.BeginAuthSessionResult.OK;
+    }
+
+    /** Simulates this user going offline: every peer with a session gets a connect failure. */
+    @Override
+    public void dispose(){
+        long[] peers;
+        synchronized(this){
+            peers = new long[sessions.size];
+            int i = 0;
+            for(LongMap.Entry<PeerState> entry : sessions){
+                peers[i++] = entry.key;
+            }
+            sessions.clear();
+        }
+
+        for(long peer : peers){
+            LoopbackTransport other = hub.get(peer);
+            if(other != null) other.sessionLost(id.handle(), P2PSessionError.Timeout);
+        }
+        hub.unregister(this);
+    }
+
+    static class Message{
+        final long from;
+        final byte[] data;
+        final int channel;
+
+        Message(long from, byte[] data, int channel){
+            this.from = from;
+            this.data = data;
+            this.channel = channel;
+        }
+    }
+
+    public static class Lobby{
+        public final SteamID id;
+        final LoopbackTransport owner;
+        final ObjectMap<String, String> data = new ObjectMap<>();
+        final Seq<LoopbackTransport> members = new Seq<>();
+        LobbyType type;
+        int limit;
+
+        Lobby(SteamID id, LoopbackTransport owner, LobbyType type, int limit){
+            this.id = id;
+            this.owner = owner;
+            this.type = type;
+            this.limit = limit;
+            members.add(owner);
+        }
+    }
+
+    /** A simulated Steam network that endpoints register with. */
+    public static class Hub{
+        /** Base of individual Steam IDs, so that account IDs start at 1. */
+        static final long userBase = 76561197960265728L;
+        /** Base of lobby Steam IDs. */
+        static final long lobbyBase = 109775240917084160L;
+
+        final LongMap<LoopbackTransport> endpoints = new LongMap<>();
+        final LongMap<Lobby> lobbies = new LongMap<>();
+        final Random random;
+        long nextUser = 1, nextLobby = 1;
+
+        /** Chance of an unreliable message being dropped. */
+        public volatile float lossRate;
+        public final AtomicLong sent = new AtomicLong(), dropped = new AtomicLong();
+
+        public Hub(){
+            this(new Random());
+        }
+
+        public Hub(Random random){
+            this.random = random;
+        }
+
+        synchronized SteamID register(LoopbackTransport endpoint){
+            SteamID id = SteamID.createFromNativeHandle(userBase + nextUser++);
+            endpoints.put(id.handle(), endpoint);
+            return id;
+        }
+
+        synchronized void unregister(LoopbackTransport endpoint){
+            endpoints.remove(endpoint.id.handle());
+        }
+
+        public synchronized LoopbackTransport get(long handle){
+            return endpoints.get(handle);
+        }
+
+        synchronized Lobby createLobby(LoopbackTransport owner, LobbyType type, int limit){
+            Lobby lobby = new Lobby(SteamID.createFromNativeHandle(lobbyBase + nextLobby++), owner, type, limit);
+            lobbies.put(lobby.id.handle(), lobby);
+            return lobby;
+        }
+
+        public synchronized Lobby lobby(SteamID id){
+            return lobbies.get(id.handle());
+        }
+    }
+}
@@ -3,6 +3,8 @@ package space.shugen.MDTSteamLobbyPlugin;
 import arc.ApplicationListener;
 import arc.Core;
 import arc.Events;
+import arc.func.Func;
+import arc.struct.Seq;
 import arc.util.CommandHandler;
 import arc.util.Log;
 import arc.util.Strings;
@@ -15,7 +17,10 @@ import mindustry.mod.Plugin;
 import mindustry.net.ArcNetProvider;
 import mindustry.net.Net;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.file.Files;
 
 import static mindustry.Vars.*;
 
@@ -24,29 +29,22 @@ public class MDTSteamLobbyPlugin extends Plugin {
     //called when game initializes
     @Override
     public void init() {
-        try {
-            SteamAPI.loadLibraries();
-
-            if (!SteamAPI.init()) {
-                Log.err("Steam client not running.");
-            } else {
-                initSteam();
-                Vars.steam = true;
-                Log.err("Steam client running.");
-            }
-            if (SteamAPI.restartAppIfNecessary(SVars.steamID)) {
-                System.exit(0);
+        SConfig.load();
+        Compressor.load();
+
+        if (SConfig.gatewayListen > 0) {
+            //behind a gateway, Steam runs in the gateway process
+            try {
+                initNet(s -> new GatewayTransport(s, SConfig.gatewayBind, SConfig.gatewayListen));
+                Log.info("Running behind a Steam gateway.");
+            } catch (Throwable e) {
+                Log.err("Failed to start as a Steam gateway backend.");
+                Log.err(e);
             }
-        } catch (NullPointerException ignored) {
-            ignored.printStackTrace();
-            Log.err(ignored.getMessage());
-            steam = false;
-            Log.info("Running in offline mode.");
-        } catch (Throwable e) {
-            steam = false;
-            Log.err("Failed to load Steam native libraries.");
-            Log.err(e);
+        } else {
+            loadSteam();
         }
+
         Vars.platform = new Platform() {
             @Override
             public Net.NetProvider getNet() {
@@ -108,7 +106,8 @@ public class MDTSteamLobbyPlugin extends Plugin {
         Core.app.addListener(new ApplicationListener() {
             @Override
             public void update() {
-                if (SteamAPI.isSteamRunning()) {
+                //an idle server only looks for new sessions and lobby members a few times per second
+                if ((SVars.net == null || SVars.net.idle.callbacksDue()) && SteamAPI.isSteamRunning()) {
                     SteamAPI.runCallbacks();
                 }
             }
@@ -116,19 +115,37 @@ public class MDTSteamLobbyPlugin extends Plugin {
 
     }
 
+    void loadSteam() {
+        try {
+            SteamAPI.loadLibraries();
+
+            if (!SteamAPI.init()) {
+                Log.err("Steam client not running.");
+            } else {
+                initSteam();
+                Vars.steam = true;
+                Log.err("Steam client running.");
+            }
+            if (SteamAPI.restartAppIfNecessary(SVars.steamID)) {
+                System.exit(0);
+            }
+        } catch (NullPointerException ignored) {
+            ignored.printStackTrace();
+            Log.err(ignored.getMessage());
+            steam = false;
+            Log.info("Running in offline mode.");
+        } catch (Throwable e) {
+            steam = false;
+            Log.err("Failed to load Steam native libraries.");
+            Log.err(e);
+        }
+    }
+
     void initSteam() throws NoSuchFieldException, IllegalAccessException {
-        Field providerField = net.getClass().getDeclaredField("provider");
-        providerField.setAccessible(true);
-        Net.NetProvider provider = (Net.NetProvider) providerField.get(net);
-        SVars.net = new SNet(provider);
-        providerField.set(net, SVars.net);
-        SVars.user = new SUser();
+        initNet(SteamTransport::new);
+        SVars.user = new SUser(((SteamTransport) SVars.net.transport).user);
         boolean[] isShutdown = {false};
 
-        Events.on(EventType.WorldLoadEvent.class, (e) -> {
-            SVars.net.updateLobby();
-        });
-
         Events.on(EventType.DisposeEvent.class, event -> {
             SteamAPI.shutdown();
             isShutdown[0] = true;
@@ -142,6 +159,21 @@ public class MDTSteamLobbyPlugin extends Plugin {
         }));
     }
 
+    /** Puts an {@link SNet} on the given transport in front of the provider Mindustry created, and routes broadcasts to it. */
+    void initNet(Func<SNet, P2PTransport> transport) throws NoSuchFieldException, IllegalAccessException {
+        Field providerField = net.getClass().getDeclaredField("provider");
+        providerField.setAccessible(true);
+        Net.NetProvider provider = (Net.NetProvider) providerField.get(net);
+        SVars.net = new SNet(provider, transport);
+        providerField.set(net, SVars.net);
+        //so the game's broadcasts are serialized once, see SNet.broadcast
+        Vars.net = new BroadcastNet(net, SVars.net);
+
+        Events.on(EventType.WorldLoadEvent.class, (e) -> {
+            SVars.net.updateLobby();
+        });
+    }
+
     /**
      * Register any commands to be used on the server side, e.g. from the console.
      *
@@ -158,5 +190,55 @@ public class MDTSteamLobbyPlugin extends Plugin {
 //            SVars.net.connections.size();
 //        });
 
+        handler.register("steamstats", "[reset/json]", "Show Steam network statistics.", (args) -> {
+            if (SVars.net == null) {
+                Log.err("Steam is not running.");
+                return;
+            }
+
+            if (args.length > 0 && args[0].equals("reset")) {
+                SVars.net.stats.reset();
+                Log.info("Steam statistics reset.");
+            } else if (args.length > 0 && args[0].equals("json")) {
+                Log.info(SVars.net.stats.json(SVars.net.connections.steam()));
+            } else {
+                SVars.net.stats.print(SVars.net.connections.steam());
+            }
+        });
+
+        handler.register("steamcapture", "<start/stop> [file]", "Record the raw Steam traffic for replaying it later.", (args) -> {
+            if (SVars.net == null) {
+                Log.err("Steam is not running.");
+                return;
+            }
+
+            if (args[0].equals("start")) {
+                File file = new File(args.length > 1 ? args[1] : "steam-" + System.currentTimeMillis() + ".cap");
+                try {
+                    SVars.net.startCapture(file);
+                } catch (IOException e) {
+                    Log.err("Failed to start the capture.");
+                    Log.err(e);
+                }
+            } else if (args[0].equals("stop")) {
+                if (!SVars.net.stopCapture()) Log.err("No capture is running.");
+            } else {
+                Log.err("Use start or stop.");
+            }
+        });
+
+        handler.register("steamdictionary", "<capture> [file]", "Train a compression dictionary on a capture. Servers and clients need the same one.", (args) -> {
+            File capture = new File(args[0]), file = new File(args.length > 1 ? args[1] : "steam.dict");
+            try {
+                Seq<byte[]> packets = Capture.packets(capture, Compressor.trainLimit);
+                byte[] dictionary = Compressor.train(packets, Compressor.defaultDictionarySize);
+                Files.write(file.toPath(), dictionary);
+                Log.info("Trained a @ byte dictionary on @ packets. Set steam-compression-dictionary to @ to use it.",
+                        dictionary.length, packets.size, file.getAbsolutePath());
+            } catch (IOException e) {
+                Log.err("Failed to train a dictionary.");
+                Log.err(e);
+            }
+        });
     }
 }
@@ -0,0 +1,217 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.util.Log;
+import arc.util.Strings;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import com.codedisaster.steamworks.SteamNetworking.P2PSessionError;
+import space.shugen.MDTSteamLobbyPlugin.SNet.SteamConnection;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the Steam transport. Packets are Mindustry packets, messages are what goes over Steam after batching.
+ * Most fields are plain longs that only the game thread writes, so readers on other threads may see slightly stale values.
+ * The receive side, which runs on the {@link NetThread} if there is one, counts into {@link LongAdder}s instead.
+ */
+public class NetStats{
+    static final P2PSend[] modes = P2PSend.values();
+    static final P2PSessionError[] errors = P2PSessionError.values();
+
+    public long packetsIn, packetsOut, messagesOut, bytesOut;
+    /** Written by the receiving thread. */
+    public final LongAdder messagesIn = new LongAdder(), bytesIn = new LongAdder(), readFailures = new LongAdder(),
+        floodDropped = new LongAdder(), floodBans = new LongAdder();
+    public final long[] messagesByMode = new long[modes.length];
+    public long serialized, serializeNanos;
+    /** Packets sent compressed, their size before and after, and the time spent compressing, sent or not. */
+    public long compressed, compressedRaw, compressedBytes, compressNanos;
+    public long receiveTicks, receiveNanos, receiveMaxNanos, lastReceiveNanos;
+    public long sendFailures, reaped;
+    public long authVerified, authFailed;
+    public long resumed, resumeExpired, resumeOverflows;
+    /** Snapshots held back by a {@link SendScheduler}, and those that were superseded or dropped instead of sent later. */
+    public long snapshotsDeferred, snapshotsDropped;
+    /** Other unreliable packets held back by a {@link SendScheduler}, and those that were dropped instead of sent later. */
+    public long unreliableDeferred, unreliableDropped;
+    public final long[] disconnects = new long[errors.length];
+    public long since = Time.millis();
+
+    public void sent(P2PSend mode, int bytes){
+        messagesOut++;
+        bytesOut += bytes;
+        messagesByMode[mode.ordinal()]++;
+    }
+
+    /** Receiving thread. */
+    public void received(int bytes){
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    public void serialized(long nanos){
+        serialized++;
+        serializeNanos += nanos;
+    }
+
+    public void compressed(int raw, int bytes, long nanos){
+        compressNanos += nanos;
+        if(bytes == 0) return;
+        compressed++;
+        compressedRaw += raw;
+        compressedBytes += bytes;
+    }
+
+    public void receiveTick(long nanos){
+        receiveTicks++;
+        receiveNanos += nanos;
+        lastReceiveNanos = nanos;
+        if(nanos > receiveMaxNanos) receiveMaxNanos = nanos;
+    }
+
+    public void disconnected(P2PSessionError error){
+        disconnects[error.ordinal()]++;
+    }
+
+    public void reset(){
+        packetsIn = packetsOut = messagesOut = bytesOut = 0;
+        messagesIn.reset();
+        bytesIn.reset();
+        serialized = serializeNanos = 0;
+        compressed = compressedRaw = compressedBytes = compressNanos = 0;
+        receiveTicks = receiveNanos = receiveMaxNanos = lastReceiveNanos = 0;
+        sendFailures = reaped = 0;
+        readFailures.reset();
+        floodDropped.reset();
+        floodBans.reset();
+        authVerified = authFailed = 0;
+        resumed = resumeExpired = resumeOverflows = 0;
+        snapshotsDeferred = snapshotsDropped = 0;
+        unreliableDeferred = unreliableDropped = 0;
+        for(int i = 0; i < messagesByMode.length; i++) messagesByMode[i] = 0;
+        for(int i = 0; i < disconnects.length; i++) disconnects[i] = 0;
+        since = Time.millis();
+    }
+
+    /** Prints the totals and every Steam connection to the console. */
+    public void print(SteamConnection[] connections){
+        float seconds = Math.max(Time.timeSinceMillis(since) / 1000f, 0.001f);
+
+        Log.info("Steam traffic over the last @s:", Strings.fixed(seconds, 1));
+        long bytesIn = this.bytesIn.sum();
+        Log.info("  In:  @ packets, @ messages, @ KB (@ KB/s)", packetsIn, messagesIn.sum(), bytesIn / 1024, Strings.fixed(bytesIn / 1024f / seconds, 1));
+        Log.info("  Out: @ packets, @ messages, @ KB (@ KB/s)", packetsOut, messagesOut, bytesOut / 1024, Strings.fixed(bytesOut / 1024f / seconds, 1));
+
+        StringBuilder byMode = new StringBuilder();
+        for(P2PSend mode : modes){
+            byMode.append(' ').append(mode.name()).append('=').append(messagesByMode[mode.ordinal()]);
+        }
+        Log.info("  Out by mode:@", byMode);
+        Log.info("  Serialization: @ packets, @ us average", serialized, Strings.fixed(serialized == 0 ? 0f : serializeNanos / 1000f / serialized, 2));
+        if(compressNanos > 0){
+            Log.info("  Compression: @ packets, @ KB saved (@%), @ ms spent", compressed, (compressedRaw - compressedBytes) / 1024,
+                Strings.fixed(compressedRaw == 0 ? 0f : 100f * (compressedRaw - compressedBytes) / compressedRaw, 1), compressNanos / 1_000_000);
+        }
+        Log.info("  Receive loop: @ us average, @ us max, @ us last tick",
+            Strings.fixed(receiveTicks == 0 ? 0f : receiveNanos / 1000f / receiveTicks, 1), receiveMaxNanos / 1000, lastReceiveNanos / 1000);
+
+        StringBuilder lost = new StringBuilder();
+        for(P2PSessionError error : errors){
+            if(disconnects[error.ordinal()] > 0) lost.append(' ').append(error.name()).append('=').append(disconnects[error.ordinal()]);
+        }
+        Log.info("  Budget: @ snapshots deferred, @ superseded or dropped; @ other packets deferred, @ dropped",
+            snapshotsDeferred, snapshotsDropped, unreliableDeferred, unreliableDropped);
+        Log.info("  Send failures: @, read failures: @, reaped: @, disconnects:@", sendFailures, readFailures.sum(), reaped, lost.length() == 0 ? " none" : lost);
+
+        Log.info("  Flood protection: @ messages dropped, @ bans", floodDropped.sum(), floodBans.sum());
+        Log.info("  Authentication: @ verified, @ failed", authVerified, authFailed);
+        Log.info("  Resumption: @ resumed, @ expired, @ held too much", resumed, resumeExpired, resumeOverflows);
+
+        Log.info("  @ Steam connections", connections.length);
+        for(SteamConnection con : connections){
+            Peer peer = con.stats;
+            Log.info("    @: in @ packets / @ KB, out @ packets / @ KB", con.address, peer.packetsIn, peer.bytesIn.sum() / 1024, peer.packetsOut, peer.bytesOut / 1024);
+        }
+    }
+
+    /** @return the totals and every Steam connection as one line of JSON. */
+    public String json(SteamConnection[] connections){
+        StringBuilder out = new StringBuilder(256 + connections.length * 96);
+        out.append("{\"time\":").append(System.currentTimeMillis())
+            .append(",\"duration\":").append(Time.timeSinceMillis(since))
+            .append(",\"packetsIn\":").append(packetsIn)
+            .append(",\"packetsOut\":").append(packetsOut)
+            .append(",\"messagesIn\":").append(messagesIn.sum())
+            .append(",\"messagesOut\":").append(messagesOut)
+            .append(",\"bytesIn\":").append(bytesIn.sum())
+            .append(",\"bytesOut\":").append(bytesOut)
+            .append(",\"messagesByMode\":{");
+        for(P2PSend mode : modes){
+            if(mode.ordinal() > 0) out.append(',');
+            out.append('"').append(mode.name()).append("\":").append(messagesByMode[mode.ordinal()]);
+        }
+        out.append("},\"serialized\":").append(serialized)
+            .append(",\"serializeNanos\":").append(serializeNanos)
+            .append(",\"compressed\":").append(compressed)
+            .append(",\"compressedRaw\":").append(compressedRaw)
+            .append(",\"compressedBytes\":").append(compressedBytes)
+            .append(",\"compressNanos\":").append(compressNanos)
+            .append(",\"receiveTicks\":").append(receiveTicks)
+            .append(",\"receiveNanos\":").append(receiveNanos)
+            .append(",\"receiveMaxNanos\":").append(receiveMaxNanos)
+            .append(",\"snapshotsDeferred\":").append(snapshotsDeferred)
+            .append(",\"snapshotsDropped\":").append(snapshotsDropped)
+            .append(",\"unreliableDeferred\":").append(unreliableDeferred)
+            .append(",\"unreliableDropped\":").append(unreliableDropped)
+            .append(",\"sendFailures\":").append(sendFailures)
+            .append(",\"readFailures\":").append(readFailures.sum())
+            .append(",\"reaped\":").append(reaped)
+            .append(",\"floodDropped\":").append(floodDropped.sum())
+            .append(",\"floodBans\":").append(floodBans.sum())
+            .append(",\"authVerified\":").append(authVerified)
+            .append(",\"authFailed\":").append(authFailed)
+            .append(",\"resumed\":").append(resumed)
+            .append(",\"resumeExpired\":").append(resumeExpired)
+            .append(",\"resumeOverflows\":").append(resumeOverflows)
+            .append(",\"disconnects\":{");
+        for(P2PSessionError error : errors){
+            if(error.ordinal() > 0) out.append(',');
+            out.append('"').append(error.name()).append("\":").append(disconnects[error.ordinal()]);
+        }
+        out.append("},\"connections\":[");
+        for(int i = 0; i < connections.length; i++){
+            Peer peer = connections[i].stats;
+            if(i > 0) out.append(',');
+            out.append("{\"id\":\"").append(connections[i].id)
+                .append("\",\"packetsIn\":").append(peer.packetsIn)
+                .append(",\"packetsOut\":").append(peer.packetsOut)
+                .append(",\"bytesIn\":").append(peer.bytesIn.sum())
+                .append(",\"bytesOut\":").append(peer.bytesOut)
+                .append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    /** Appends {@link #json} to {@link SConfig#statsFile}. */
+    public void dump(SteamConnection[] connections){
+        try{
+            Files.write(Paths.get(SConfig.statsFile), (json(connections) + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }catch(IOException e){
+            Log.err("Failed to write Steam stats to @.", SConfig.statsFile);
+            Log.err(e);
+        }
+    }
+
+    /** Counters of a single connection. */
+    public static class Peer{
+        public long packetsIn, packetsOut, bytesOut;
+        /** Written by the receiving thread. */
+        public final LongAdder bytesIn = new LongAdder();
+    }
+}
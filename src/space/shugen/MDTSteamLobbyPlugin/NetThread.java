@@ -0,0 +1,186 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.Core;
+import arc.util.Log;
+import arc.util.Threads;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import space.shugen.MDTSteamLobbyPlugin.SNet.SteamConnection;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Optional thread that does the Steam reads, packet decoding and Steam sends, enabled with {@link SConfig#ioThread}.
+ * Decoded packets reach the game thread through {@link #inbound}, which {@link ReceivePump} drains every tick;
+ * messages the game thread sends go through {@link #outbound}. Both rings hold {@link SConfig#ioQueueSize} entries.
+ * A full inbound ring stops reading, so the backlog stays queued in Steam; a full outbound ring makes the game thread wait.
+ */
+public class NetThread implements Runnable{
+    /** How long the thread sleeps when there is nothing to do, unless it is woken up; {@link SConfig#idleInterval} while the server is idle. */
+    static final long idleNanos = 1_000_000L;
+
+    final SNet owner;
+    final SpscRing<Inbound> inbound;
+    final SpscRing<Outbound> outbound;
+    /** Steam only sends from direct buffers; larger messages borrow one from {@link SNet#buffers}. */
+    final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(16384);
+    volatile boolean running;
+    Thread thread;
+
+    public NetThread(SNet owner){
+        this.owner = owner;
+        this.inbound = new SpscRing<>(SConfig.ioQueueSize, Inbound::new);
+        this.outbound = new SpscRing<>(SConfig.ioQueueSize, Outbound::new);
+    }
+
+    public void start(){
+        if(running) return;
+        running = true;
+        thread = Threads.daemon("Steam I/O", this);
+    }
+
+    public void stop(){
+        running = false;
+        if(thread != null) LockSupport.unpark(thread);
+    }
+
+    /** Wakes the thread up, so that queued messages go out without waiting for it to poll. */
+    public void wake(){
+        if(thread != null) LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run(){
+        while(running){
+            try{
+                boolean busy = sendQueued();
+                busy |= owner.pump.receive(Time.nanos()) > 0;
+                owner.fragments.expire();
+                busy |= sendQueued();
+                owner.transport.flush();
+
+                if(!busy) LockSupport.parkNanos(this, owner.idle.idle() ? SConfig.idleInterval * 1_000_000L : idleNanos);
+            }catch(Throwable e){
+                Log.err("Steam I/O thread error:");
+                Log.err(e);
+            }
+        }
+    }
+
+    /** Game thread. Copies a message into the outbound ring, waiting for space if needed. */
+    void send(SteamID to, ByteBuffer data, P2PSend mode, int channel){
+        Outbound slot;
+        while((slot = outbound.claim()) == null){
+            wake();
+            Thread.yield();
+        }
+
+        int length = data.remaining();
+        if(length <= slot.data.length){
+            data.get(slot.data, 0, length);
+        }else{
+            //released by the I/O thread once sent
+            slot.large = owner.heapBuffers.acquire(length);
+            slot.large.put(data).flip();
+        }
+        data.position(data.position() - length);
+
+        slot.to = to;
+        slot.mode = mode;
+        slot.channel = channel;
+        slot.length = length;
+        outbound.publish();
+    }
+
+    /** I/O thread. @return whether anything was sent. */
+    boolean sendQueued(){
+        boolean sent = false;
+        Outbound slot;
+        while((slot = outbound.peek()) != null){
+            ByteBuffer buffer = slot.length <= sendBuffer.capacity() ? sendBuffer : owner.buffers.acquire(slot.length);
+            buffer.position(0).limit(slot.length);
+            if(slot.large != null){
+                buffer.put(slot.large);
+            }else{
+                buffer.put(slot.data, 0, slot.length);
+            }
+            buffer.flip();
+
+            SteamID to = slot.to;
+            try{
+                owner.captureSent(to, buffer, slot.mode, slot.channel);
+                owner.transport.send(to, buffer, slot.mode, slot.channel);
+            }catch(Exception e){
+                Core.app.post(() -> {
+                    SteamConnection con = owner.connections.get(to.handle());
+                    if(con != null){
+                        con.sendFailed(e);
+                    }else{
+                        Log.err(e);
+                    }
+                });
+            }finally{
+                if(buffer != sendBuffer) owner.buffers.release(buffer);
+                if(slot.large != null){
+                    owner.heapBuffers.release(slot.large);
+                    slot.large = null;
+                }
+                slot.to = null;
+                outbound.release();
+            }
+            sent = true;
+        }
+        return sent;
+    }
+
+    /** I/O thread. @return whether a decoded packet can be handed over right now. */
+    boolean canReceive(){
+        return !inbound.isFull();
+    }
+
+    /** I/O thread. Hands a decoded packet to the game thread; {@link #canReceive()} must have returned true. */
+    void received(long from, Object packet, int channel, int features){
+        Inbound slot = inbound.claim();
+        slot.from = from;
+        slot.packet = packet;
+        slot.channel = channel;
+        slot.features = features;
+        inbound.publish();
+    }
+
+    /** Game thread. Handles decoded packets within the receive budgets. */
+    int drain(long start){
+        long timeBudget = SConfig.receiveTimeBudget * 1000L;
+        int handled = 0;
+        Inbound slot;
+
+        while(handled < SConfig.receivePacketBudget && Time.timeSinceNanos(start) < timeBudget && (slot = inbound.peek()) != null){
+            long from = slot.from;
+            Object packet = slot.packet;
+            int channel = slot.channel, features = slot.features;
+            slot.packet = null;
+            inbound.release();
+
+            owner.handleReceived(from, packet, channel, features);
+            handled++;
+        }
+        return handled;
+    }
+
+    static class Inbound{
+        long from;
+        Object packet;
+        int channel, features;
+    }
+
+    static class Outbound{
+        SteamID to;
+        P2PSend mode;
+        int channel, length;
+        final byte[] data = new byte[2048];
+        /** Pooled copy of a message that doesn't fit into {@link #data}, or null. */
+        ByteBuffer large;
+    }
+}
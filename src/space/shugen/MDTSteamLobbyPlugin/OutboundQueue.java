@@ -0,0 +1,101 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import com.codedisaster.steamworks.SteamException;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Packs the serialized packets bound for one Steam peer into {@link Frames#batch} messages.
+ * Every channel keeps its own reliable and unreliable batch, so that a lost datagram never takes a reliable packet with it.
+ * Batches are sent when they are full or when {@link #flush()} is called at the end of the update tick.
+ */
+public class OutboundQueue{
+    final SNet owner;
+    final SteamID target;
+    /** Batches by channel, reliable first; created on first use. */
+    final Batch[] batches = new Batch[Channels.count * 2];
+
+    public OutboundQueue(SNet owner, SteamID target){
+        this.owner = owner;
+        this.target = target;
+    }
+
+    /** Queues a flipped buffer holding one serialized packet. The bytes are copied, so the buffer can be reused right away. */
+    public void add(ByteBuffer packet, P2PSend mode, int channel) throws SteamException{
+        boolean unreliable = mode == P2PSend.Unreliable || mode == P2PSend.UnreliableNoDelay;
+        int index = channel * 2 + (unreliable ? 1 : 0);
+        Batch batch = batches[index];
+        if(batch == null){
+            batch = batches[index] = new Batch(unreliable ? SConfig.unreliableBatchSize : SConfig.reliableBatchSize, channel);
+        }
+        int length = packet.remaining();
+
+        if(1 + Frames.lengthSize + length > batch.buffer.capacity()){
+            //too big to ever be batched; keep ordering by sending what is queued first
+            batch.flush();
+            owner.sendP2P(target, packet, mode, channel);
+            return;
+        }
+
+        if(batch.buffer.remaining() < Frames.lengthSize + length){
+            batch.flush();
+        }
+
+        batch.append(packet, mode);
+    }
+
+    public void flush() throws SteamException{
+        for(Batch batch : batches){
+            if(batch != null) batch.flush();
+        }
+    }
+
+    public boolean isEmpty(){
+        for(Batch batch : batches){
+            if(batch != null && batch.count != 0) return false;
+        }
+        return true;
+    }
+
+    class Batch{
+        final ByteBuffer buffer;
+        final int channel;
+        P2PSend mode;
+        int count;
+
+        Batch(int size, int channel){
+            this.channel = channel;
+            buffer = ByteBuffer.allocateDirect(size);
+            buffer.put(Frames.batch);
+        }
+
+        void append(ByteBuffer packet, P2PSend packetMode){
+            //buffering is only kept if every packet in the batch asked for it
+            if(count == 0 || mode == P2PSend.ReliableWithBuffering) mode = packetMode;
+            buffer.putShort((short)packet.remaining());
+            buffer.put(packet);
+            count++;
+        }
+
+        void flush() throws SteamException{
+            if(count == 0) return;
+
+            int end = buffer.position();
+            if(count == 1){
+                //a lone packet goes out as-is, without the batch header
+                buffer.limit(end).position(1 + Frames.lengthSize);
+            }else{
+                buffer.limit(end).position(0);
+            }
+
+            try{
+                owner.sendP2P(target, buffer, mode, channel);
+            }finally{
+                buffer.limit(buffer.capacity()).position(1);
+                count = 0;
+            }
+        }
+    }
+}
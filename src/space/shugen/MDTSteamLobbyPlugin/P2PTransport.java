@@ -0,0 +1,93 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import com.codedisaster.steamworks.SteamAuth.BeginAuthSessionResult;
+import com.codedisaster.steamworks.SteamException;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyDistanceFilter;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Everything {@link SNet} needs from Steam networking, matchmaking and user authentication.
+ * Events are reported through the Steam callback interfaces that {@link SNet} implements,
+ * so an implementation other than {@link SteamTransport} only has to call the same methods.
+ */
+public interface P2PTransport{
+    /** Sends the remaining bytes of a buffer. Steam needs a direct buffer here. */
+    boolean send(SteamID to, ByteBuffer data, P2PSend mode, int channel) throws SteamException;
+
+    /** Pushes out sends that the implementation buffers. Called after the outbound queues are flushed. */
+    default void flush(){
+    }
+
+    /** @return the size of the next message on a channel, or 0 if there is none. */
+    int available(int channel);
+
+    /**
+     * Reads the next message on a channel into a buffer, starting at its position, and leaves the buffer flipped.
+     * @return the native handle of the sender, or -1 if nothing could be read.
+     */
+    long read(ByteBuffer dest, int channel) throws SteamException;
+
+    boolean acceptSession(SteamID peer);
+
+    boolean closeSession(SteamID peer);
+
+    /** Fills in the state of the session with a peer. @return false if there is no session. */
+    boolean getSessionState(SteamID peer, PeerState out);
+
+    void createLobby(LobbyType type, int maxMembers);
+
+    void joinLobby(SteamID lobby);
+
+    void leaveLobby(SteamID lobby);
+
+    /** @param distance distance filter, or null for the Steam default. */
+    void requestLobbyList(int maxResults, LobbyDistanceFilter distance);
+
+    SteamID getLobbyByIndex(int index);
+
+    String getLobbyData(SteamID lobby, String key);
+
+    boolean setLobbyData(SteamID lobby, String key, String value);
+
+    void setLobbyType(SteamID lobby, LobbyType type);
+
+    void setLobbyMemberLimit(SteamID lobby, int limit);
+
+    int getNumLobbyMembers(SteamID lobby);
+
+    int getLobbyMemberLimit(SteamID lobby);
+
+    SteamID getLobbyOwner(SteamID lobby);
+
+    /** @return the Steam ID of the local user, or null if there is none. */
+    default SteamID localUser(){
+        return null;
+    }
+
+    /**
+     * Writes an auth ticket of the local user at the position of a direct buffer and leaves it flipped.
+     * @return false if no ticket could be created.
+     */
+    default boolean getAuthTicket(ByteBuffer dest) throws SteamException{
+        return false;
+    }
+
+    /** Cancels every ticket created by {@link #getAuthTicket}. */
+    default void cancelAuthTickets(){
+    }
+
+    /** Starts validating the ticket of a peer; the answer arrives through {@link SNet#onValidateAuthTicket}. */
+    default BeginAuthSessionResult beginAuthSession(ByteBuffer ticket, SteamID peer) throws SteamException{
+        return BeginAuthSessionResult.InvalidTicket;
+    }
+
+    default void endAuthSession(SteamID peer){
+    }
+
+    default void dispose(){
+    }
+}
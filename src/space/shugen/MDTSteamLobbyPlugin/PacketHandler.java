@@ -0,0 +1,33 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import mindustry.net.NetConnection;
+
+import static mindustry.Vars.net;
+
+/** Receives the packets that {@link SNet} decodes. */
+public interface PacketHandler{
+    /** Whether packets should be handled as a server, creating a connection for every new peer. */
+    boolean server();
+
+    void handleServer(NetConnection con, Object object);
+
+    void handleClient(Object object);
+
+    /** Hands packets to {@link mindustry.Vars#net}. */
+    class VarsHandler implements PacketHandler{
+        @Override
+        public boolean server(){
+            return net.server();
+        }
+
+        @Override
+        public void handleServer(NetConnection con, Object object){
+            net.handleServerReceived(con, object);
+        }
+
+        @Override
+        public void handleClient(Object object){
+            net.handleClientReceived(object);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import com.codedisaster.steamworks.SteamNetworking.P2PSessionError;
+
+/** State of a P2P session, as reported by {@link P2PTransport#getSessionState}. */
+public class PeerState{
+    public boolean active, connecting, relay;
+    public int bytesQueued, packetsQueued;
+    public P2PSessionError error = P2PSessionError.None;
+
+    public void reset(){
+        active = connecting = relay = false;
+        bytesQueued = packetsQueued = 0;
+        error = P2PSessionError.None;
+    }
+}
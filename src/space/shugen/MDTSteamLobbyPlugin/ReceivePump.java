@@ -0,0 +1,246 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.ApplicationListener;
+import arc.Core;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamException;
+import mindustry.net.ArcNetProvider.PacketSerializer;
+import space.shugen.MDTSteamLobbyPlugin.SNet.SteamConnection;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+import static mindustry.Vars.net;
+
+/**
+ * Reads P2P messages and hands the decoded packets to {@link SNet#handleReceived}.
+ * Work per tick is capped by {@link SConfig#receivePacketBudget} and {@link SConfig#receiveTimeBudget};
+ * whatever is left stays queued in Steam, or in {@link #readCopyBuffer} for a half-read batch, until the next tick.
+ */
+public class ReceivePump implements ApplicationListener{
+    final SNet owner;
+    /** Separate from {@link SNet#serializer}, which the game thread keeps writing with while a {@link NetThread} decodes. */
+    final PacketSerializer serializer = new PacketSerializer();
+    /** Inflates compressed packets into {@link SNet#heapBuffers}. */
+    final Compressor compressor;
+    /** Steam only reads into direct buffers. Swapped for a bigger pooled one while a large message is handled. */
+    ByteBuffer readBuffer;
+    /** lz4 chokes on direct buffers, so every message is copied here once and decoded in place. */
+    ByteBuffer readCopyBuffer;
+    /** Size of the message waiting on the channel {@link #nextChannel()} returned. */
+    int nextSize;
+
+    /** Whether {@link #readCopyBuffer} still holds unread packets of a batch. */
+    boolean pending;
+    /** Channel and sender of the message in {@link #readCopyBuffer}. */
+    int channel;
+    long from;
+    /** Whether the message in {@link #readCopyBuffer} is subject to {@link Admission}. */
+    boolean checked;
+
+    public ReceivePump(SNet owner){
+        this.owner = owner;
+        compressor = new Compressor(owner.heapBuffers);
+        readBuffer = owner.buffers.acquire(SConfig.writeBufferSize);
+        readCopyBuffer = owner.heapBuffers.acquire(SConfig.writeBufferSize);
+    }
+
+    /** Makes the read buffers fit the next message, trading them back for the usual size after a large one. */
+    void fit(int size){
+        int capacity = BufferArena.capacityOf(Math.max(size, SConfig.writeBufferSize));
+        if(readBuffer.capacity() == capacity) return;
+
+        owner.buffers.release(readBuffer);
+        owner.heapBuffers.release(readCopyBuffer);
+        readBuffer = owner.buffers.acquire(capacity);
+        readCopyBuffer = owner.heapBuffers.acquire(capacity);
+    }
+
+    @Override
+    public void update(){
+        long start = Time.nanos();
+        owner.idle.update();
+
+        if(owner.io != null){
+            owner.io.drain(start);
+        }else if(owner.idle.pollDue()){
+            receive(start);
+            owner.fragments.expire();
+        }
+
+        owner.stats.receiveTick(Time.timeSinceNanos(start));
+        owner.admission.expire();
+        owner.auth.expire();
+        owner.resumption.expire();
+        owner.streamer.update();
+        owner.flush();
+    }
+
+    /**
+     * Reads and decodes messages until a budget is used up or nothing is left.
+     * Runs on the game thread, or on the {@link NetThread} if there is one, which also stops it while its queue is full.
+     * @return the number of packets decoded.
+     */
+    int receive(long start){
+        long timeBudget = SConfig.receiveTimeBudget * 1000L;
+        int handled = 0;
+
+        while(handled < SConfig.receivePacketBudget && Time.timeSinceNanos(start) < timeBudget && (owner.io == null || owner.io.canReceive())){
+            try{
+                if(pending){
+                    if(readCopyBuffer.remaining() < Frames.lengthSize){
+                        pending = false;
+                        continue;
+                    }
+
+                    int end = (readCopyBuffer.getShort() & 0xffff) + readCopyBuffer.position();
+                    int limit = readCopyBuffer.limit();
+                    //skip the rest of a malformed batch
+                    if(end > limit){
+                        pending = false;
+                        continue;
+                    }
+
+                    if(checked && !owner.admission.admit(from, 0, 1)){
+                        readCopyBuffer.position(end);
+                        continue;
+                    }
+
+                    readCopyBuffer.limit(end);
+                    try{
+                        deliver(read(readCopyBuffer), Frames.featureBatch);
+                    }finally{
+                        readCopyBuffer.limit(limit).position(end);
+                        handled++;
+                    }
+                }else{
+                    channel = nextChannel();
+                    if(channel == -1) break;
+
+                    if(!readNext()){
+                        handled++;
+                        continue;
+                    }
+                    int length = readBuffer.remaining();
+                    owner.stats.received(length);
+                    Capture capture = owner.capture;
+                    if(capture != null) capture.record(Capture.inbound, from, channel, readBuffer);
+                    SteamConnection con = owner.connections.get(from);
+                    if(con != null) con.stats.bytesIn.add(length);
+
+                    //clients only ever hear from their server
+                    checked = owner.handler.server() || owner.gateway != null;
+                    //packets in a batch are counted one by one as they are decoded
+                    boolean batch = length > 0 && readBuffer.get(readBuffer.position()) == Frames.batch;
+                    if(checked && !owner.admission.admit(from, length, batch ? 0 : 1)) continue;
+
+                    if(owner.gateway != null){
+                        handled++;
+                        owner.gateway.relay(from, channel, readBuffer);
+                        continue;
+                    }
+
+                    readCopyBuffer.position(0).limit(readCopyBuffer.capacity());
+                    readCopyBuffer.put(readBuffer);
+                    readCopyBuffer.flip();
+
+                    byte marker = length > 0 ? readCopyBuffer.get(0) : 0;
+                    if(marker == Frames.batch){
+                        readCopyBuffer.position(1);
+                        pending = true;
+                    }else if(marker == Frames.hello){
+                        JoinPipeline.Hello hello = JoinPipeline.Hello.read(readCopyBuffer);
+                        if(hello != null){
+                            handled++;
+                            deliver(hello, 0);
+                        }
+                    }else if(marker == Frames.auth){
+                        byte[] ticket = new byte[length - 1];
+                        readCopyBuffer.position(1);
+                        readCopyBuffer.get(ticket);
+                        handled++;
+                        deliver(new Authenticator.Ticket(ticket), 0);
+                    }else if(marker == Frames.fragment){
+                        ByteBuffer whole = owner.fragments.receive(from, readCopyBuffer);
+                        if(whole != null){
+                            handled++;
+                            deliver(read(whole), Frames.featureFragments);
+                        }
+                    }else{
+                        handled++;
+                        deliver(read(readCopyBuffer), 0);
+                    }
+                }
+            }catch(Exception e){
+                if(owner.handler.server()){
+                    Log.err(e);
+                }else if(owner.io != null){
+                    Core.app.post(() -> net.showError(e));
+                }else{
+                    net.showError(e);
+                }
+            }
+        }
+
+        return handled;
+    }
+
+    /**
+     * Reads the message waiting on {@link #channel} into {@link #readBuffer}. If that fails, the message is read into a buffer
+     * of the usual size instead, which Steam truncates it to, and dropped, so that it isn't retried every tick.
+     * @return false if the message was dropped.
+     */
+    boolean readNext() throws SteamException{
+        try{
+            fit(nextSize);
+            readBuffer.position(0).limit(readBuffer.capacity());
+            from = owner.transport.read(readBuffer, channel);
+            if(from != -1) return true;
+
+            //the message is gone, but it is unknown who sent it
+            owner.stats.readFailures.increment();
+            return false;
+        }catch(RuntimeException | SteamException e){
+            owner.stats.readFailures.increment();
+            Log.err("Failed to read a Steam message of @ bytes on channel @, dropping it.", nextSize, channel);
+            Log.err(e);
+        }
+
+        ByteBuffer skip = owner.buffers.acquire(SConfig.writeBufferSize);
+        try{
+            owner.transport.read(skip, channel);
+        }finally{
+            owner.buffers.release(skip);
+        }
+        return false;
+    }
+
+    /** Decodes one packet from a heap buffer, inflating it first if it is compressed. */
+    Object read(ByteBuffer packet) throws DataFormatException{
+        if(!packet.hasRemaining() || packet.get(packet.position()) != Frames.compressed) return serializer.read(packet);
+
+        ByteBuffer inflated = compressor.decompress(packet);
+        try{
+            return serializer.read(inflated);
+        }finally{
+            owner.heapBuffers.release(inflated);
+        }
+    }
+
+    void deliver(Object packet, int features){
+        if(owner.io != null){
+            owner.io.received(from, packet, channel, features);
+        }else{
+            owner.handleReceived(from, packet, channel, features);
+        }
+    }
+
+    /** @return the first channel in {@link Channels#priority} order that has a message waiting, or -1. */
+    int nextChannel(){
+        for(int channel : Channels.priority){
+            if((nextSize = owner.transport.available(channel)) != 0) return channel;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,223 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.IntSeq;
+import arc.struct.LongMap;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamException;
+import com.codedisaster.steamworks.SteamID;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyDistanceFilter;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * {@link P2PTransport} that plays back the inbound messages of a {@link Capture}, so that a recorded session goes through
+ * the receive loop, the decoding and the packet handler again without Steam. Messages are handed out when they were
+ * recorded, or as fast as they are read; what the server sends is counted and discarded.
+ * Every peer of the capture has an open session. Not thread-safe.
+ */
+public class ReplayTransport implements P2PTransport{
+    /** How many messages are read ahead when replaying as fast as possible. */
+    static final int readAhead = 1024;
+
+    public final boolean realtime;
+    public long sentMessages, sentBytes, replayed;
+
+    final MappedByteBuffer data;
+    /** Reused to copy messages out of {@link #data}. */
+    final ByteBuffer view;
+    /** Offsets of the records that are due, by channel; consumed from {@link #heads}. */
+    final IntSeq[] due = new IntSeq[Channels.count];
+    final int[] heads = new int[Channels.count];
+    final LongMap<PeerState> sessions = new LongMap<>();
+
+    /** Offset of the next record that is not due yet. */
+    int cursor;
+    int queued;
+    long start;
+    boolean done;
+
+    /** @param realtime whether messages wait until the time they were recorded at. */
+    public ReplayTransport(File file, boolean realtime) throws IOException{
+        this.realtime = realtime;
+        try(RandomAccessFile input = new RandomAccessFile(file, "r"); FileChannel channel = input.getChannel()){
+            if(channel.size() > Integer.MAX_VALUE) throw new IOException("Captures over 2 GB can't be replayed: " + file);
+            data = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if(data.limit() < Capture.fileHeaderSize || data.getLong(0) != Capture.magic){
+            throw new IOException("Not a Steam capture: " + file);
+        }
+        view = data.duplicate();
+        for(int i = 0; i < due.length; i++){
+            due[i] = new IntSeq();
+        }
+        rewind();
+    }
+
+    /** Starts over from the first message. Sessions stay open. */
+    public void rewind(){
+        cursor = Capture.fileHeaderSize;
+        queued = 0;
+        start = -1;
+        done = false;
+        for(int i = 0; i < due.length; i++){
+            due[i].clear();
+            heads[i] = 0;
+        }
+    }
+
+    /** @return whether every message was handed out. */
+    public boolean finished(){
+        return done && queued == 0;
+    }
+
+    /** Queues the records whose time has come. */
+    void advance(){
+        if(start == -1) start = Time.nanos();
+        long elapsed = Time.timeSinceNanos(start);
+
+        while(!done && (realtime || queued < readAhead)){
+            if(cursor + Capture.recordHeaderSize > data.limit() || data.get(cursor) == Capture.end){
+                done = true;
+                break;
+            }
+            if(realtime && data.getLong(cursor + 2) > elapsed) break;
+
+            int kind = data.get(cursor), channel = data.get(cursor + 1) & 0xf;
+            long peer = data.getLong(cursor + 10);
+            int length = data.getInt(cursor + 18);
+            if(length < 0 || cursor + Capture.recordHeaderSize + length > data.limit()){
+                //cut off while recording
+                done = true;
+                break;
+            }
+
+            if(kind == Capture.inbound && channel < Channels.count){
+                due[channel].add(cursor);
+                queued++;
+                if(!sessions.containsKey(peer)){
+                    PeerState state = new PeerState();
+                    state.active = true;
+                    sessions.put(peer, state);
+                }
+            }
+            cursor += Capture.recordHeaderSize + length;
+        }
+    }
+
+    @Override
+    public boolean send(SteamID to, ByteBuffer data, P2PSend mode, int channel){
+        sentMessages++;
+        sentBytes += data.remaining();
+        return true;
+    }
+
+    @Override
+    public int available(int channel){
+        if(heads[channel] == due[channel].size) advance();
+        return heads[channel] == due[channel].size ? 0 : data.getInt(due[channel].get(heads[channel]) + 18);
+    }
+
+    @Override
+    public long read(ByteBuffer dest, int channel) throws SteamException{
+        if(heads[channel] == due[channel].size) throw new SteamException("No message available on channel " + channel);
+
+        int offset = due[channel].get(heads[channel]++);
+        if(heads[channel] == due[channel].size){
+            due[channel].clear();
+            heads[channel] = 0;
+        }
+        queued--;
+        replayed++;
+
+        int length = data.getInt(offset + 18);
+        if(length > dest.remaining()) throw new SteamException("Buffer too small for message of " + length + " bytes");
+
+        view.limit(offset + Capture.recordHeaderSize + length).position(offset + Capture.recordHeaderSize);
+        int position = dest.position();
+        dest.put(view);
+        dest.limit(dest.position()).position(position);
+        return data.getLong(offset + 10);
+    }
+
+    @Override
+    public boolean acceptSession(SteamID peer){
+        return true;
+    }
+
+    @Override
+    public boolean closeSession(SteamID peer){
+        return sessions.remove(peer.handle()) != null;
+    }
+
+    @Override
+    public boolean getSessionState(SteamID peer, PeerState out){
+        PeerState state = sessions.get(peer.handle());
+        out.reset();
+        if(state == null) return false;
+        out.active = true;
+        return true;
+    }
+
+    @Override
+    public void createLobby(LobbyType type, int maxMembers){
+    }
+
+    @Override
+    public void joinLobby(SteamID lobby){
+    }
+
+    @Override
+    public void leaveLobby(SteamID lobby){
+    }
+
+    @Override
+    public void requestLobbyList(int maxResults, LobbyDistanceFilter distance){
+    }
+
+    @Override
+    public SteamID getLobbyByIndex(int index){
+        return null;
+    }
+
+    @Override
+    public String getLobbyData(SteamID lobby, String key){
+        return "";
+    }
+
+    @Override
+    public boolean setLobbyData(SteamID lobby, String key, String value){
+        return true;
+    }
+
+    @Override
+    public void setLobbyType(SteamID lobby, LobbyType type){
+    }
+
+    @Override
+    public void setLobbyMemberLimit(SteamID lobby, int limit){
+    }
+
+    @Override
+    public int getNumLobbyMembers(SteamID lobby){
+        return sessions.size;
+    }
+
+    @Override
+    public int getLobbyMemberLimit(SteamID lobby){
+        return 0;
+    }
+
+    @Override
+    public SteamID getLobbyOwner(SteamID lobby){
+        return null;
+    }
+}
@@ -0,0 +1,134 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.Seq;
+import arc.util.Log;
+import arc.util.Time;
+import com.codedisaster.steamworks.SteamException;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import space.shugen.MDTSteamLobbyPlugin.SNet.SteamConnection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the connection and player of a peer whose P2P session dropped for {@link SConfig#resumeGrace}, instead of
+ * disconnecting it and making it download the world again when it comes back. Only peers that offered
+ * {@link Frames#featureResume} in their hello and finished joining are suspended; vanilla clients reconnect from scratch.
+ * While suspended, reliable packets are held, up to {@link SConfig#resumeBuffer} bytes, and unreliable ones are dropped,
+ * since later snapshots supersede them. The first message from the same Steam ID resumes the connection and sends what was held;
+ * a {@link mindustry.net.Packets.ConnectPacket} instead means the peer started over.
+ * Runs on the game thread only.
+ */
+public class Resumption{
+    /** Suspension time of a connection that was held too much for; {@link #expire()} closes it, not in the middle of a broadcast. */
+    static final long overflow = 1;
+
+    final SNet owner;
+    final Seq<SteamConnection> suspended = new Seq<>();
+
+    public Resumption(SNet owner){
+        this.owner = owner;
+    }
+
+    /** @return whether the connection was suspended rather than having to be closed. */
+    public boolean suspend(SteamConnection con){
+        if(SConfig.resumeGrace <= 0 || (con.features & Frames.featureResume) == 0 || !con.hasConnected || owner.streamer.streaming(con)) return false;
+        if(con.suspended == 0){
+            con.suspended = Time.millis();
+            suspended.add(con);
+            Log.info("Steam session of @ dropped, keeping the connection for @ ms.", con.address, SConfig.resumeGrace);
+        }
+        return true;
+    }
+
+    /** Keeps a reliable message for a suspended connection; gives up on the connection if too much is held. */
+    public void hold(SteamConnection con, ByteBuffer data, int channel, P2PSend mode){
+        if(con.suspended == overflow) return;
+
+        int length = data.remaining();
+        if(con.heldBytes + length > SConfig.resumeBuffer){
+            Log.info("Too much happened while @ was away, closing the connection.", con.address);
+            owner.stats.resumeOverflows++;
+            con.suspended = overflow;
+            con.missed = null;
+            con.heldBytes = 0;
+            return;
+        }
+
+        byte[] bytes = new byte[length];
+        int position = data.position();
+        data.get(bytes);
+        data.position(position);
+        if(con.missed == null) con.missed = new Seq<>();
+        con.missed.add(new Held(bytes, channel, mode));
+        con.heldBytes += length;
+    }
+
+    /** The peer is back: sends what it missed, in order, after whatever was still queued for it. */
+    public void resume(SteamConnection con){
+        if(con.suspended == 0 || con.suspended == overflow) return;
+
+        long away = Time.timeSinceMillis(con.suspended);
+        int count = con.missed == null ? 0 : con.missed.size, bytes = con.heldBytes;
+        Seq<Held> missed = con.missed;
+        forget(con);
+        con.lastActive = Time.millis();
+        owner.stats.resumed++;
+
+        try{
+            if(missed != null){
+                for(Held held : missed){
+                    ByteBuffer buffer = owner.buffers.acquire(held.data.length);
+                    try{
+                        buffer.put(held.data).flip();
+                        if((con.features & Frames.featureBatch) != 0){
+                            con.queue.add(buffer, held.mode, held.channel);
+                        }else{
+                            owner.sendP2P(con.sid, buffer, held.mode, held.channel);
+                        }
+                    }finally{
+                        owner.buffers.release(buffer);
+                    }
+                }
+            }
+            Log.info("@ is back after @ ms, sent @ missed packets, @ KB.", con.address, away, count, bytes / 1024);
+        }catch(SteamException e){
+            con.sendFailed(e);
+        }
+    }
+
+    /** Drops the suspension of a connection that is being closed. */
+    public void forget(SteamConnection con){
+        if(con.suspended == 0) return;
+        con.suspended = 0;
+        con.missed = null;
+        con.heldBytes = 0;
+        suspended.remove(con, true);
+    }
+
+    /** Closes connections whose peer didn't come back in time. Cheap to call every tick. */
+    public void expire(){
+        for(int i = suspended.size - 1; i >= 0; i--){
+            SteamConnection con = suspended.get(i);
+            if(con.suspended == overflow){
+                con.close();
+            }else if(Time.timeSinceMillis(con.suspended) > SConfig.resumeGrace){
+                Log.info("@ did not come back, closing the connection.", con.address);
+                owner.stats.resumeExpired++;
+                con.close();
+            }
+        }
+    }
+
+    /** A reliable message as it would have been sent. */
+    static class Held{
+        final byte[] data;
+        final int channel;
+        final P2PSend mode;
+
+        Held(byte[] data, int channel, P2PSend mode){
+            this.data = data;
+            this.channel = channel;
+            this.mode = mode;
+        }
+    }
+}
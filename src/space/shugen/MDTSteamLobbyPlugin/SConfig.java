@@ -0,0 +1,153 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.Core;
+
+/** Tunables of the Steam transport. Defaults are used until {@link #load()} reads the server settings. */
+public class SConfig{
+    /** Coalesce outbound packets for every peer, not only for peers that sent a batch themselves. Vanilla clients cannot read batches. */
+    public static boolean batching = false;
+    /** Send snapshots on their own channel to every peer, not only to peers that used it first. Vanilla clients only read channel 0. */
+    public static boolean multiChannel = false;
+    /** Split oversized unreliable packets for every peer, not only for peers that sent fragments first. Vanilla clients cannot reassemble them. */
+    public static boolean fragmentation = false;
+    /** Size of the buffer packets are serialized into first; bigger packets are retried in bigger pooled buffers. */
+    public static int writeBufferSize = 16384;
+    /** Offer and accept {@link Compressor} compression in the join handshake. Both sides need the same dictionary, vanilla clients never ask for it. */
+    public static boolean compression = false;
+    /** Deflate level from 1, fastest, to 9, smallest. */
+    public static int compressionLevel = 4;
+    /** Packets smaller than this many bytes are never compressed. */
+    public static int compressionThreshold = 64;
+    /** File holding the dictionary made with the steamdictionary command; empty to compress without one. */
+    public static String compressionDictionary = "";
+    /** Largest unreliable datagram. Bigger unreliable packets are fragmented, or sent reliably to peers that cannot reassemble them. */
+    public static int mtu = 1200;
+    /** How long an incomplete set of fragments is kept, in milliseconds. */
+    public static int fragmentTimeout = 1000;
+    /** Maximum size of a coalesced unreliable message. Steam fragments anything above ~1200 bytes. */
+    public static int unreliableBatchSize = 1200;
+    /** Maximum size of a coalesced reliable message. */
+    public static int reliableBatchSize = 8192;
+    /** Bytes a connection may send per update tick before its unreliable packets are deferred; 0 for no limit. Reliable packets always go out. */
+    public static int sendBudget = 32768;
+    /** Bytes queued in Steam for a peer at which its unreliable packets are deferred until the queue drains; 0 to ignore the queue. */
+    public static int congestionQueue = 65536;
+    /** Size of the chunks that world data and other streams are split into, in bytes. */
+    public static int streamChunkSize = 4096;
+    /** A stream only gets more chunks while fewer bytes than this are queued in Steam for its peer. */
+    public static int streamWindow = 65536;
+    /** Maximum stream data sent per update tick, shared by all peers that are receiving a stream. */
+    public static int streamBudget = 262144;
+    /** How often the session state of every Steam connection is read, in milliseconds. */
+    public static int sessionInterval = 1000;
+    /** How long a Steam connection may go without an active session before it is closed, in milliseconds. */
+    public static int sessionTimeout = 10000;
+    /** Packets per second a peer may send on average, and in a burst; 0 turns the limit off. */
+    public static int floodPackets = 600;
+    /** Bytes per second a peer may send on average, and in a burst; 0 turns the limit off. */
+    public static int floodBytes = 256 * 1024;
+    /** New sessions accepted per second from all peers together; 0 turns the limit off. */
+    public static int floodSessions = 10;
+    /** How long a peer that floods is refused, in milliseconds; 0 never bans. */
+    public static int floodBan = 60000;
+    /** Steam auth ticket validation: "off", "optional" to let in peers without a ticket, like vanilla clients, or "required". */
+    public static String auth = "optional";
+    /** How long a peer may take to be validated before it is disconnected, in milliseconds. */
+    public static int authTimeout = 10000;
+    /** Number of recently verified Steam IDs that can reconnect without being validated again. */
+    public static int authCacheSize = 256;
+    /** Comma-separated host:port of the backends to relay Steam users to; empty unless this server is a gateway. */
+    public static String gatewayBackends = "";
+    /** Port to wait for a gateway on, instead of using Steam directly; 0 unless this server is a gateway backend. */
+    public static int gatewayListen = 0;
+    /** Address a backend waits for its gateway on; empty for every interface. */
+    public static String gatewayBind = "127.0.0.1";
+    /** Secret the gateway and its backends share. Without one, a backend only accepts a gateway on the same machine. */
+    public static String gatewaySecret = "";
+    /** Read, decode and send on a separate thread instead of the game thread. */
+    public static boolean ioThread = false;
+    /** Capacity of each of the queues between the I/O thread and the game thread, in packets or messages. */
+    public static int ioQueueSize = 4096;
+    /** Size at which a {@link Capture} stops recording, in megabytes. Replays read at most 2 GB. */
+    public static int captureLimit = 1024;
+    /** Maximum number of packets decoded per update tick. */
+    public static int receivePacketBudget = 512;
+    /** Maximum time spent decoding packets per update tick, in microseconds. */
+    public static int receiveTimeBudget = 4000;
+    /** How long a dropped peer that can resume keeps its connection and player, in milliseconds; 0 disconnects right away. */
+    public static int resumeGrace = 0;
+    /** Bytes of reliable packets held for a dropped peer; past that it has to join again. */
+    public static int resumeBuffer = 256 * 1024;
+    /** Minimum time between two lobby metadata updates, in milliseconds. */
+    public static int lobbyInterval = 5000;
+    /** How long a server has to be without Steam connections before it goes idle, in milliseconds; 0 never idles. */
+    public static int idleDelay = 10000;
+    /** Time between two runs of the Steam callbacks and two polls for messages while idle, in milliseconds. */
+    public static int idleInterval = 250;
+    /** Minimum time between two lobby metadata updates while idle, in milliseconds. */
+    public static int idleLobbyInterval = 60000;
+    /** How long entering a lobby, and then opening the session with its host, may take, in milliseconds. */
+    public static int joinTimeout = 15000;
+    /** How long a Steam lobby list is reused, in milliseconds. */
+    public static int discoveryTtl = 10000;
+    /** How long to wait for Steam to answer a lobby list request, in milliseconds. */
+    public static int discoveryTimeout = 5000;
+    /** Seconds between two writes of the stats to {@link #statsFile}; 0 turns it off. */
+    public static int statsInterval = 0;
+    /** File that stats are appended to, one JSON object per line. */
+    public static String statsFile = "steam-stats.jsonl";
+
+    /** @return the {@link Frames} features every peer is assumed to understand. */
+    public static int features(){
+        return (batching ? Frames.featureBatch : 0) | (multiChannel ? Frames.featureChannels : 0) | (fragmentation ? Frames.featureFragments : 0);
+    }
+
+    public static void load(){
+        batching = Core.settings.getBool("steam-batching", batching);
+        multiChannel = Core.settings.getBool("steam-multichannel", multiChannel);
+        fragmentation = Core.settings.getBool("steam-fragmentation", fragmentation);
+        writeBufferSize = Core.settings.getInt("steam-write-buffer", writeBufferSize);
+        compression = Core.settings.getBool("steam-compression", compression);
+        compressionLevel = Core.settings.getInt("steam-compression-level", compressionLevel);
+        compressionThreshold = Core.settings.getInt("steam-compression-threshold", compressionThreshold);
+        compressionDictionary = Core.settings.getString("steam-compression-dictionary", compressionDictionary);
+        mtu = Core.settings.getInt("steam-mtu", mtu);
+        fragmentTimeout = Core.settings.getInt("steam-fragment-timeout", fragmentTimeout);
+        unreliableBatchSize = Core.settings.getInt("steam-unreliable-batch", unreliableBatchSize);
+        reliableBatchSize = Core.settings.getInt("steam-reliable-batch", reliableBatchSize);
+        sendBudget = Core.settings.getInt("steam-send-budget", sendBudget);
+        congestionQueue = Core.settings.getInt("steam-congestion-queue", congestionQueue);
+        streamChunkSize = Core.settings.getInt("steam-stream-chunk", streamChunkSize);
+        streamWindow = Core.settings.getInt("steam-stream-window", streamWindow);
+        streamBudget = Core.settings.getInt("steam-stream-budget", streamBudget);
+        sessionInterval = Core.settings.getInt("steam-session-interval", sessionInterval);
+        sessionTimeout = Core.settings.getInt("steam-session-timeout", sessionTimeout);
+        floodPackets = Core.settings.getInt("steam-flood-packets", floodPackets);
+        floodBytes = Core.settings.getInt("steam-flood-bytes", floodBytes);
+        floodSessions = Core.settings.getInt("steam-flood-sessions", floodSessions);
+        floodBan = Core.settings.getInt("steam-flood-ban", floodBan);
+        auth = Core.settings.getString("steam-auth", auth);
+        authTimeout = Core.settings.getInt("steam-auth-timeout", authTimeout);
+        authCacheSize = Core.settings.getInt("steam-auth-cache", authCacheSize);
+        gatewayBackends = Core.settings.getString("steam-gateway", gatewayBackends);
+        gatewayListen = Core.settings.getInt("steam-gateway-listen", gatewayListen);
+        gatewayBind = Core.settings.getString("steam-gateway-bind", gatewayBind);
+        gatewaySecret = Core.settings.getString("steam-gateway-secret", gatewaySecret);
+        ioThread = Core.settings.getBool("steam-io-thread", ioThread);
+        ioQueueSize = Core.settings.getInt("steam-io-queue", ioQueueSize);
+        captureLimit = Core.settings.getInt("steam-capture-limit", captureLimit);
+        receivePacketBudget = Core.settings.getInt("steam-receive-packets", receivePacketBudget);
+        receiveTimeBudget = Core.settings.getInt("steam-receive-micros", receiveTimeBudget);
+        resumeGrace = Core.settings.getInt("steam-resume-grace", resumeGrace);
+        resumeBuffer = Core.settings.getInt("steam-resume-buffer", resumeBuffer);
+        lobbyInterval = Core.settings.getInt("steam-lobby-interval", lobbyInterval);
+        idleDelay = Core.settings.getInt("steam-idle-delay", idleDelay);
+        idleInterval = Core.settings.getInt("steam-idle-interval", idleInterval);
+        idleLobbyInterval = Core.settings.getInt("steam-idle-lobby-interval", idleLobbyInterval);
+        joinTimeout = Core.settings.getInt("steam-join-timeout", joinTimeout);
+        discoveryTtl = Core.settings.getInt("steam-discovery-ttl", discoveryTtl);
+        discoveryTimeout = Core.settings.getInt("steam-discovery-timeout", discoveryTimeout);
+        statsInterval = Core.settings.getInt("steam-stats-interval", statsInterval);
+        statsFile = Core.settings.getString("steam-stats-file", statsFile);
+    }
+}
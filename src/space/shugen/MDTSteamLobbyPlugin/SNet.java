@@ -1,18 +1,19 @@
 package space.shugen.MDTSteamLobbyPlugin;
 
-import arc.ApplicationListener;
 import arc.Core;
 import arc.Events;
 import arc.func.Cons;
-import arc.struct.IntMap;
+import arc.func.Func;
+import arc.struct.Seq;
 import arc.util.Log;
+import arc.util.Time;
+import arc.util.Timer;
 import arc.util.pooling.Pools;
 import com.codedisaster.steamworks.*;
 import com.codedisaster.steamworks.SteamMatchmaking.ChatMemberStateChange;
 import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
 import com.codedisaster.steamworks.SteamNetworking.P2PSend;
 import com.codedisaster.steamworks.SteamNetworking.P2PSessionError;
-import com.codedisaster.steamworks.SteamNetworking.P2PSessionState;
 import mindustry.core.Version;
 import mindustry.game.EventType;
 import mindustry.game.EventType.WaveEvent;
@@ -23,108 +24,306 @@ import mindustry.net.Net.NetProvider;
 import mindustry.net.NetConnection;
 import mindustry.net.Packet;
 import mindustry.net.Packets.Connect;
+import mindustry.net.Packets.ConnectPacket;
 import mindustry.net.Packets.Disconnect;
 import mindustry.net.Packets.StreamChunk;
+import mindustry.net.Streamable;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import static mindustry.Vars.net;
 import static mindustry.Vars.state;
 
-public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback, SteamFriendsCallback, NetProvider {
-    public final SteamNetworking snet = new SteamNetworking(this);
-    public final SteamMatchmaking smat = new SteamMatchmaking(this);
-    public final SteamFriends friends = new SteamFriends(this);
+public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback, SteamFriendsCallback, SteamUserCallback, NetProvider {
+    public final P2PTransport transport;
+    /** Rich presence; null unless running on {@link SteamTransport}. */
+    public final SteamFriends friends;
 
     final NetProvider provider;
 
     final PacketSerializer serializer = new PacketSerializer();
-    final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(16384);
-    final ByteBuffer readBuffer = ByteBuffer.allocateDirect(16384);
-    final ByteBuffer readCopyBuffer = ByteBuffer.allocate(writeBuffer.capacity());
-
-    final CopyOnWriteArrayList<SteamConnection> connections = new CopyOnWriteArrayList<>();
-    final IntMap<SteamConnection> steamConnections = new IntMap<>(); //maps steam ID -> valid net connection
+    /** Direct buffers for everything that goes to Steam. */
+    final BufferArena buffers = new BufferArena(true);
+    /** Heap buffers for decoding, which lz4 can't do from direct ones. */
+    final BufferArena heapBuffers = new BufferArena(false);
+    /** Compresses for peers that agreed to it; game thread only. */
+    final Compressor compressor = new Compressor(buffers);
+    final ReceivePump pump = new ReceivePump(this);
+    final LobbyPublisher lobby = new LobbyPublisher(this);
+    final LobbyDiscovery discovery = new LobbyDiscovery(this);
+    final Fragmenter fragments = new Fragmenter(this);
+    final WorldStreamer streamer = new WorldStreamer(this);
+    final SessionMonitor monitor = new SessionMonitor(this);
+    final Admission admission = new Admission(this);
+    final Authenticator auth = new Authenticator(this);
+    final JoinPipeline join = new JoinPipeline(this);
+    final Resumption resumption = new Resumption(this);
+    final IdleScheduler idle = new IdleScheduler(this);
+    /** Does the Steam I/O if {@link SConfig#ioThread} is set, otherwise null. */
+    final NetThread io;
+    /** Relays Steam users to backend servers if {@link SConfig#gatewayBackends} is set, otherwise null. */
+    final Gateway gateway;
+    public final NetStats stats = new NetStats();
+    /** Records every raw message while set; written by whichever thread does the Steam I/O. */
+    volatile Capture capture;
+
+    final BroadcastCache broadcast = new BroadcastCache(buffers);
+    final ConnectionRegistry connections;
 
     SteamID currentLobby, currentServer;
-    Cons<Host> lobbyCallback;
-    Runnable lobbyDoneCallback, joinCallback;
+    /** Update ticks so far, counted by {@link #flush()}. */
+    long ticks;
+    OutboundQueue clientQueue;
+    /** Where decoded packets go. */
+    public PacketHandler handler = new PacketHandler.VarsHandler();
 
     public SNet(NetProvider provider) {
-        this.provider = provider;
+        this(provider, SteamTransport::new);
+    }
 
-        Events.on(EventType.ServerLoadEvent.class, e -> Core.app.addListener(new ApplicationListener() {
-            //read packets
-            int length;
-            SteamID from = new SteamID();
-
-            @Override
-            public void update() {
-                while ((length = snet.isP2PPacketAvailable(0)) != 0) {
-                    try {
-                        readBuffer.position(0).limit(readBuffer.capacity());
-                        //lz4 chokes on direct buffers, so copy the bytes over
-                        int len = snet.readP2PPacket(from, readBuffer, 0);
-                        readBuffer.limit(len);
-                        readCopyBuffer.position(0);
-                        readCopyBuffer.put(readBuffer);
-                        readCopyBuffer.position(0);
-                        int fromID = from.getAccountID();
-                        Object output = serializer.read(readCopyBuffer);
-
-                        //it may be theoretically possible for this to be a framework message, if the packet is malicious or corrupted
-                        if (!(output instanceof Packet)) return;
-
-                        Packet pack = (Packet) output;
-
-                        if (net.server()) {
-                            SteamConnection con = steamConnections.get(fromID);
-                            try {
-                                //accept users on request
-                                if (con == null) {
-                                    con = new SteamConnection(SteamID.createFromNativeHandle(from.handle()));
-                                    Connect c = new Connect();
-                                    c.addressTCP = "steam:" + from.getAccountID();
-
-                                    Log.info("&bReceived STEAM connection: @", c.addressTCP);
-
-                                    steamConnections.put(from.getAccountID(), con);
-                                    connections.add(con);
-                                    net.handleServerReceived(con, c);
-                                }
-
-                                net.handleServerReceived(con, pack);
-                            } catch (Throwable e) {
-                                Log.err(e);
-                            }
-                        } else if (currentServer != null && fromID == currentServer.getAccountID()) {
-                            try {
-                                net.handleClientReceived(pack);
-                            } catch (Throwable t) {
-                                net.handleException(t);
-                            }
-                        }
-                    } catch (Exception e) {
-                        if (net.server()) {
-                            Log.err(e);
-                        } else {
-                            net.showError(e);
-                        }
-                    }
-                }
+    public SNet(NetProvider provider, Func<SNet, P2PTransport> transportFactory) {
+        this.provider = provider;
+        this.connections = new ConnectionRegistry(provider);
+        this.transport = transportFactory.get(this);
+        this.friends = this.transport instanceof SteamTransport ? ((SteamTransport) this.transport).friends : null;
+        this.gateway = SConfig.gatewayBackends.isEmpty() ? null : new Gateway(this, SConfig.gatewayBackends);
+        //the gateway relays from the game thread
+        this.io = SConfig.ioThread && gateway == null ? new NetThread(this) : null;
+
+        Events.on(EventType.ServerLoadEvent.class, e -> {
+            Core.app.addListener(pump);
+            Core.app.addListener(lobby);
+            Core.app.addListener(monitor);
+            if (io != null) io.start();
+            if (gateway != null) Core.app.addListener(gateway);
+
+            if (SConfig.statsInterval > 0) {
+                Timer.schedule(() -> stats.dump(connections.steam()), SConfig.statsInterval, SConfig.statsInterval);
             }
-        }));
+        });
+
+        Events.on(EventType.ClientLoadEvent.class, e -> {
+            Core.app.addListener(pump);
+            Core.app.addListener(join);
+            if (io != null) io.start();
+        });
 
         Events.on(WaveEvent.class, e -> {
             if (currentLobby != null && net.server()) {
-                smat.setLobbyData(currentLobby, "wave", state.wave + "");
+                lobby.set("wave", state.wave + "");
             }
         });
     }
 
+    /** @param features {@link Frames} features the peer used to send this packet. */
+    void handleReceived(long from, Object output, int channel, int features) {
+        boolean ticket = output instanceof Authenticator.Ticket;
+        boolean hello = output instanceof JoinPipeline.Hello;
+        //it may be theoretically possible for this to be a framework message, if the packet is malicious or corrupted
+        if (!ticket && !hello && !(output instanceof Packet)) return;
+
+        if (handler.server()) {
+            SteamConnection con = connections.get(from);
+            try {
+                if (con != null && con.suspended != 0) {
+                    if (output instanceof ConnectPacket) {
+                        //the peer started over instead of resuming, and gets a new connection
+                        Log.info("@ joined again instead of resuming.", con.address);
+                        end(con);
+                        con = null;
+                    } else {
+                        resumption.resume(con);
+                    }
+                }
+
+                //accept users on request
+                if (con == null) {
+                    con = new SteamConnection(SteamID.createFromNativeHandle(from));
+                    Connect c = new Connect();
+                    c.addressTCP = "steam:" + con.sid.getAccountID();
+
+                    Log.info("&bReceived STEAM connection: @", c.addressTCP);
+
+                    connections.add(con);
+                    handler.handleServer(con, c);
+                }
+
+                //a peer that sends batches, fragments or uses other channels can read them too
+                con.features |= features | (channel != 0 ? Frames.featureChannels : 0);
+
+                if (ticket) {
+                    auth.ticket(con, (Authenticator.Ticket) output);
+                    return;
+                }
+
+                if (hello) {
+                    answerHello(con, (JoinPipeline.Hello) output);
+                    return;
+                }
+
+                Packet pack = (Packet) output;
+                stats.packetsIn++;
+                con.stats.packetsIn++;
+                //held back until Steam has validated the peer, if it has to be
+                if (auth.admit(con, pack)) handler.handleServer(con, pack);
+            } catch (Throwable e) {
+                Log.err(e);
+            }
+        } else if (hello) {
+            if (join.host != null && from == join.host.handle()) join.hello((JoinPipeline.Hello) output);
+        } else if (!ticket && currentServer != null && from == currentServer.handle()) {
+            try {
+                stats.packetsIn++;
+                join.received(output);
+                handler.handleClient(output);
+            } catch (Throwable t) {
+                net.handleException(t);
+            }
+        }
+    }
+
+    /**
+     * Server side: uses the features a client offered that this server agrees to, and tells it which ones those are,
+     * and whether it is still in the game, for a client that is resuming.
+     */
+    void answerHello(SteamConnection con, JoinPipeline.Hello hello) throws SteamException {
+        int accepted = hello.accepted();
+        con.features |= accepted;
+        //the client keeps saying hello until the session is up, so this may be answered a few times; a server never joins, so the buffer is free
+        JoinPipeline.Hello.write(join.hello, accepted | (con.hasConnected ? JoinPipeline.Hello.known : 0));
+        sendP2P(con.sid, join.hello, P2PSend.Reliable, Channels.control);
+    }
+
+    /** Sends everything that was queued during this tick. */
+    void flush() {
+        ticks++;
+
+        for (SteamConnection con : connections.steam()) {
+            con.flush();
+        }
+
+        if (clientQueue != null) {
+            try {
+                clientQueue.flush();
+            } catch (Exception e) {
+                net.showError(e);
+            }
+        }
+
+        if (gateway != null) gateway.flush();
+
+        if (io != null) {
+            io.wake();
+        } else {
+            transport.flush();
+        }
+    }
+
+    void sendP2P(SteamID to, ByteBuffer data, P2PSend mode, int channel) throws SteamException {
+        stats.sent(mode, data.remaining());
+        if (io != null) {
+            io.send(to, data, mode, channel);
+        } else {
+            captureSent(to, data, mode, channel);
+            transport.send(to, data, mode, channel);
+        }
+    }
+
+    /** Records a message right before it goes to the transport. */
+    void captureSent(SteamID to, ByteBuffer data, P2PSend mode, int channel) {
+        Capture capture = this.capture;
+        if (capture != null) capture.record(Capture.outbound, to.handle(), channel | mode.ordinal() << 4, data);
+    }
+
+    /** Starts recording every message read and sent to a file, replacing the capture that was running. */
+    public void startCapture(File file) throws IOException {
+        Capture previous = capture;
+        capture = new Capture(file, SConfig.captureLimit * 1024L * 1024L);
+        if (previous != null) previous.close();
+        Log.info("Capturing Steam traffic to @.", file.getAbsolutePath());
+    }
+
+    /** @return whether a capture was running. */
+    public boolean stopCapture() {
+        Capture capture = this.capture;
+        this.capture = null;
+        if (capture == null) return false;
+        capture.close();
+        return true;
+    }
+
+    /** Sends a serialized packet, picking channel, send mode and framing from the {@link Frames} features of the peer. */
+    void sendPacket(SteamID to, OutboundQueue queue, int features, ByteBuffer data, Object object, boolean reliable) throws SteamException {
+        int channel = (features & Frames.featureChannels) != 0 ? Channels.of(reliable) : 0;
+        sendPacket(to, queue, features, data, channel, reliable, object instanceof StreamChunk);
+    }
+
+    /** @param stream whether the packet is world data, which Steam may buffer. */
+    void sendPacket(SteamID to, OutboundQueue queue, int features, ByteBuffer data, int channel, boolean reliable, boolean stream) throws SteamException {
+        int length = data.remaining();
+
+        if (!reliable && length >= SConfig.mtu && (features & Frames.featureFragments) != 0 && fragments.send(to, data, channel)) {
+            return;
+        }
+
+        //too big for one datagram and the peer can't reassemble it, so it has to go the reliable way
+        P2PSend mode = reliable || length >= SConfig.mtu ? stream ? P2PSend.ReliableWithBuffering : P2PSend.Reliable : P2PSend.UnreliableNoDelay;
+
+        if ((features & Frames.featureBatch) != 0) {
+            queue.add(data, mode, channel);
+        } else {
+            sendP2P(to, data, mode, channel);
+        }
+    }
+
+    /**
+     * Serializes an object into a pooled buffer and leaves it flipped; the buffer grows until the packet fits.
+     * The caller releases it to {@link #buffers}.
+     */
+    ByteBuffer serialize(Object object) {
+        ByteBuffer buffer = buffers.acquire(SConfig.writeBufferSize);
+        while (true) {
+            try {
+                serialize(buffer, object);
+                return buffer;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= BufferArena.maxSize) {
+                    buffers.release(buffer);
+                    throw e;
+                }
+                buffer = buffers.grow(buffer);
+            }
+        }
+    }
+
+    /**
+     * Compresses a serialized packet for a peer that agreed to it, without moving its position.
+     * @return a pooled buffer the caller releases, or null if the packet goes out as it is.
+     */
+    ByteBuffer compress(ByteBuffer data, Object object) {
+        //world data is deflated by the game already
+        if (object instanceof StreamChunk) return null;
+
+        long start = Time.nanos();
+        ByteBuffer packed = compressor.compress(data);
+        stats.compressed(data.remaining(), packed == null ? 0 : packed.remaining(), Time.timeSinceNanos(start));
+        return packed;
+    }
+
+    int serialize(ByteBuffer buffer, Object object) {
+        long start = Time.nanos();
+        buffer.limit(buffer.capacity());
+        buffer.position(0);
+        serializer.write(buffer, object);
+        int length = buffer.position();
+        buffer.flip();
+        stats.serialized(Time.timeSinceNanos(start));
+        return length;
+    }
+
     public boolean isSteamClient() {
         return currentServer != null;
     }
@@ -135,8 +334,7 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
             String lobbyname = ip.substring("steam:".length());
             try {
                 SteamID lobby = SteamID.createFromNativeHandle(Long.parseLong(lobbyname));
-                joinCallback = success;
-                smat.joinLobby(lobby);
+                join.join(lobby, success);
             } catch (NumberFormatException e) {
                 throw new IOException("Invalid Steam ID: " + lobbyname);
             }
@@ -153,16 +351,22 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
                 return;
             }
 
+            ByteBuffer data = null, packed = null;
             try{
-                writeBuffer.limit(writeBuffer.capacity());
-                writeBuffer.position(0);
-                serializer.write(writeBuffer, object);
-                int length = writeBuffer.position();
-                writeBuffer.flip();
-
-                snet.sendP2PPacket(currentServer, writeBuffer, reliable || length >= 1200 ? P2PSend.Reliable : P2PSend.UnreliableNoDelay, 0);
+                data = serialize(object);
+                if(clientQueue == null || clientQueue.target != currentServer){
+                    //the ticket has to be the first thing the server gets from us; other hosts can't decode it
+                    if (join.pluginHost) auth.sendTicket(currentServer);
+                    clientQueue = new OutboundQueue(this, currentServer);
+                }
+                int features = join.features;
+                if((features & Frames.featureCompression) != 0) packed = compress(data, object);
+                sendPacket(currentServer, clientQueue, features, packed != null ? packed : data, object, reliable);
             }catch(Exception e){
                 net.showError(e);
+            }finally{
+                if(data != null) buffers.release(data);
+                if(packed != null) buffers.release(packed);
             }
         }else{
             provider.sendClient(object, reliable);
@@ -172,12 +376,15 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
 
     @Override
     public void disconnectClient() {
+        join.cancel();
         if (isSteamClient()) {
             if (currentLobby != null) {
-                smat.leaveLobby(currentLobby);
-                snet.closeP2PSessionWithUser(currentServer);
+                transport.leaveLobby(currentLobby);
+                transport.closeSession(currentServer);
+                auth.cancelTickets();
                 currentServer = null;
                 currentLobby = null;
+                clientQueue = null;
                 net.handleClientReceived(new Disconnect());
             }
         } else {
@@ -187,18 +394,11 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
 
     @Override
     public void discoverServers(Cons<Host> callback, Runnable done) {
-        smat.addRequestLobbyListResultCountFilter(32);
-        smat.requestLobbyList();
-        lobbyCallback = callback;
-
-        //after the steam lobby is done discovering, look for local network servers.
-        lobbyDoneCallback = () -> provider.discoverServers(callback, done);
+        discovery.discover(callback, done);
     }
 
     public void getLobbyList() {
-        smat.addRequestLobbyListResultCountFilter(32);
-        smat.addRequestLobbyListDistanceFilter(SteamMatchmaking.LobbyDistanceFilter.Worldwide);
-        smat.requestLobbyList();
+        discovery.query(SteamMatchmaking.LobbyDistanceFilter.Worldwide);
     }
 
     @Override
@@ -210,64 +410,110 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
     public void hostServer(int port) throws IOException {
         Log.info("hostServer");
         provider.hostServer(port);
-        smat.createLobby(LobbyType.Public,
+        //the gateway's lobbies belong to its backends
+        if (gateway != null) return;
+        transport.createLobby(LobbyType.Public,
                 Core.settings.getInt("playerlimit") == 0 ? 250 : Core.settings.getInt("playerlimit") + 1);
 
         Log.info("Server: @\nClient: @\nActive: @", net.server(), net.client(), net.active());
     }
 
     public void updateLobby() {
-        Log.info("call updateLobby @ @", currentLobby, net.server());
         if (currentLobby != null && net.server()) {
-            Log.info("call updateLobby 1");
-            smat.setLobbyType(currentLobby, LobbyType.Public);
-            smat.setLobbyMemberLimit(currentLobby,
-                    Core.settings.getInt("playerlimit") == 0 ? 250 : Core.settings.getInt("playerlimit") + 1);
-            smat.setLobbyData(currentLobby, "name", Administration.Config.name.string() +
-                    (Administration.Config.desc.string().equalsIgnoreCase("off") ?
-                            "" : ("\n" + Administration.Config.desc.string())));
-            smat.setLobbyData(currentLobby, "mapname", state.map.name());
-            smat.setLobbyData(currentLobby, "version", Version.build + "");
-            smat.setLobbyData(currentLobby, "versionType", Version.type);
-            smat.setLobbyData(currentLobby, "wave", state.wave + "");
-            smat.setLobbyData(currentLobby, "gamemode", state.rules.mode().name() + "");
+            lobby.setMemberLimit(Core.settings.getInt("playerlimit") == 0 ? 250 : Core.settings.getInt("playerlimit") + 1);
+            publishLobbyData(Version.type);
         }
     }
 
+    /** Queues every lobby key; only the ones that changed are sent. */
+    void publishLobbyData(String versionType) {
+        lobby.set("name", Administration.Config.name.string() +
+                (Administration.Config.desc.string().equalsIgnoreCase("off") ?
+                        "" : ("\n" + Administration.Config.desc.string())));
+        lobby.set("mapname", state.map.name());
+        lobby.set("version", Version.build + "");
+        lobby.set("versionType", versionType);
+        lobby.set("wave", state.wave + "");
+        lobby.set("gamemode", state.rules.mode().name() + "");
+
+        SteamID host = transport.localUser();
+        if (host != null) lobby.set(JoinPipeline.hostKey, Long.toString(host.handle()));
+        lobby.set(JoinPipeline.featuresKey, Integer.toString(JoinPipeline.Hello.offered()));
+    }
+
     @Override
     public void closeServer() {
         provider.closeServer();
 
         if (currentLobby != null) {
-            smat.leaveLobby(currentLobby);
-            for (SteamConnection con : steamConnections.values()) {
+            transport.leaveLobby(currentLobby);
+            lobby.reset(null);
+            for (SteamConnection con : connections.steam()) {
                 con.close();
             }
             currentLobby = null;
         }
 
-        steamConnections.clear();
+        connections.clear();
+    }
+
+    @Override
+    public void dispose() {
+        if (io != null) io.stop();
+        stopCapture();
+        NetProvider.super.dispose();
     }
 
     @Override
     public Iterable<? extends NetConnection> getConnections() {
-        //merge provider connections
-        CopyOnWriteArrayList<NetConnection> connectionsOut = new CopyOnWriteArrayList<>(connections);
-        for (NetConnection c : provider.getConnections()) connectionsOut.add(c);
-        return connectionsOut;
+        //steam connections followed by provider connections, without copying either
+        return connections;
+    }
+
+    /**
+     * Sends a packet to every connection but one, serializing it once for all Steam connections.
+     * {@link BroadcastNet} sends the game's broadcasts through here.
+     * @param except connection to skip, or null.
+     */
+    public void broadcast(Object object, boolean reliable, NetConnection except) {
+        broadcast.begin();
+        try {
+            for (SteamConnection con : connections.steam()) {
+                if (con == except) continue;
+                broadcast.next(con);
+                con.send(object, reliable);
+            }
+        } finally {
+            broadcast.end();
+        }
+
+        //provider connections serialize on their own
+        for (NetConnection con : provider.getConnections()) {
+            if (con != except) con.send(object, reliable);
+        }
     }
 
     void disconnectSteamUser(SteamID steamid) {
         //a client left
-        int sid = steamid.getAccountID();
-        snet.closeP2PSessionWithUser(steamid);
+        transport.closeSession(steamid);
 
-        if (steamConnections.containsKey(sid)) {
-            SteamConnection con = steamConnections.get(sid);
-            net.handleServerReceived(con, new Disconnect());
-            steamConnections.remove(sid);
-            connections.remove(con);
-        }
+        SteamConnection con = connections.get(steamid.handle());
+        if (con != null) end(con);
+    }
+
+    /** A client's session dropped: keeps its connection for a while if it can come back, disconnects it otherwise. */
+    void dropSteamUser(SteamID steamid) {
+        SteamConnection con = connections.get(steamid.handle());
+        if (con == null || !resumption.suspend(con)) disconnectSteamUser(steamid);
+    }
+
+    /** Removes a connection and tells the game, leaving the session alone. */
+    void end(SteamConnection con) {
+        if (connections.remove(con.id) == null) return;
+        streamer.cancel(con);
+        auth.closed(con);
+        resumption.forget(con);
+        handler.handleServer(con, new Disconnect());
     }
 
 
@@ -281,6 +527,7 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
 
     @Override
     public void onLobbyEnter(SteamID steamIDLobby, int chatPermissions, boolean blocked, SteamMatchmaking.ChatRoomEnterResponse response) {
+        join.entered(steamIDLobby, response);
     }
 
     @Override
@@ -290,13 +537,29 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
     @Override
     public void onLobbyChatUpdate(SteamID lobby, SteamID who, SteamID changer, ChatMemberStateChange change) {
         Log.info("lobby @: @ caused @'s change: @", lobby.getAccountID(), who.getAccountID(), changer.getAccountID(), change);
+        //the session request follows
+        if (change == ChatMemberStateChange.Entered) idle.wake();
+        if (gateway != null) {
+            if (change == ChatMemberStateChange.Entered) {
+                gateway.entered(lobby, who);
+            } else if (change == ChatMemberStateChange.Disconnected || change == ChatMemberStateChange.Left) {
+                gateway.left(who);
+            }
+            return;
+        }
+
         if (change == ChatMemberStateChange.Disconnected || change == ChatMemberStateChange.Left) {
+            //a member that lost its connection to Steam may be back soon, one that left is gone
+            boolean dropped = change == ChatMemberStateChange.Disconnected;
             if (net.client()) {
                 //host left, leave as well
                 if (who.equals(currentServer) || who.equals(currentLobby)) {
+                    if (dropped && join.resumeSession()) return;
                     net.disconnect();
                     Log.info("Current host left.");
                 }
+            } else if (dropped) {
+                dropSteamUser(who);
             } else {
                 //a client left
                 disconnectSteamUser(who);
@@ -314,12 +577,7 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
 
     @Override
     public void onLobbyMatchList(int matches) {
-        Log.info("found @ matches @", matches, lobbyDoneCallback);
-        SteamID[] matchList = new SteamID[matches];
-        for (int i = 0; i < matches; i++) {
-            matchList[i] = smat.getLobbyByIndex(i);
-        }
-        Log.info(String.join(",", (String[]) Arrays.stream(matchList).map(SteamNativeHandle::toString).toArray()));
+        discovery.matched(matches);
     }
 
     @Override
@@ -330,6 +588,11 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
     @Override
     public void onLobbyCreated(SteamResult result, SteamID steamID) {
         Log.info("onLobbyCreated", result, steamID);
+        if (gateway != null) {
+            gateway.lobbyCreated(result, steamID);
+            return;
+        }
+
         if (!net.server()) {
             Log.info("Lobby created on server: @, ignoring.", steamID);
             return;
@@ -339,14 +602,11 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
         if (result == SteamResult.OK) {
             currentLobby = steamID;
 
-            smat.setLobbyData(currentLobby, "name", Administration.Config.name.string() +
-                    (Administration.Config.desc.string().equalsIgnoreCase("off") ?
-                            "" : ("\n" + Administration.Config.desc.string())));
-            smat.setLobbyData(steamID, "mapname", state.map.name());
-            smat.setLobbyData(steamID, "version", Version.build + "");
-            smat.setLobbyData(steamID, "versionType", "official");
-            smat.setLobbyData(steamID, "wave", state.wave + "");
-            smat.setLobbyData(steamID, "gamemode", state.rules.mode().name() + "");
+            //the lobby type and member limit were set on creation
+            lobby.reset(steamID);
+            lobby.typeSet = true;
+            publishLobbyData("official");
+            lobby.flush();
         }
 
     }
@@ -359,21 +619,35 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
 
     @Override
     public void onP2PSessionConnectFail(SteamID steamIDRemote, P2PSessionError sessionError) {
-        if (net.server()) {
+        stats.disconnected(sessionError);
+        if (gateway != null) {
+            gateway.left(steamIDRemote);
+            return;
+        }
+
+        if (handler.server()) {
             Log.info("@ has disconnected: @", steamIDRemote.getAccountID(), sessionError);
-            disconnectSteamUser(steamIDRemote);
+            dropSteamUser(steamIDRemote);
         } else if (steamIDRemote.equals(currentServer)) {
             Log.info("Disconnected! @: @", steamIDRemote.getAccountID(), sessionError);
-            net.handleClientReceived(new Disconnect());
+            if (!join.resumeSession()) net.handleClientReceived(new Disconnect());
         }
     }
 
     @Override
     public void onP2PSessionRequest(SteamID steamIDRemote) {
+        idle.wake();
         Log.info("Connection request: @", steamIDRemote.getAccountID());
-        if (net.server()) {
-            Log.info("Am server, accepting request from @ @", steamIDRemote.getAccountID(), snet.acceptP2PSessionWithUser(steamIDRemote));
+        if (handler.server() || gateway != null) {
+            if (!admission.allowSession(steamIDRemote)) {
+                Log.info("Refusing request from @: banned or too many new sessions.", steamIDRemote.getAccountID());
+                return;
+            }
+            Log.info("Am server, accepting request from @ @", steamIDRemote.getAccountID(), transport.acceptSession(steamIDRemote));
 
+        } else if (steamIDRemote.equals(currentServer)) {
+            //the server reopens the session after a drop
+            transport.acceptSession(steamIDRemote);
         }
     }
 
@@ -382,6 +656,25 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
         currentLobby = SteamID.createFromNativeHandle(Long.parseUnsignedLong(str, 16));
     }
 
+    @Override
+    public void onValidateAuthTicket(SteamID steamID, SteamAuth.AuthSessionResponse authSessionResponse, SteamID ownerSteamID) {
+        if (gateway != null) {
+            gateway.validated(steamID, authSessionResponse);
+        } else {
+            auth.validated(steamID, authSessionResponse);
+        }
+    }
+
+    @Override
+    public void onMicroTxnAuthorization(int appID, long orderID, boolean authorized) {
+
+    }
+
+    @Override
+    public void onEncryptedAppTicket(SteamResult result) {
+
+    }
+
     @Override
     public void onSetPersonaNameResponse(boolean success, boolean localSuccess, SteamResult result) {
 
@@ -424,40 +717,138 @@ public class SNet implements SteamNetworkingCallback, SteamMatchmakingCallback,
 
     public class SteamConnection extends NetConnection {
         final SteamID sid;
-        final P2PSessionState state = new P2PSessionState();
+        /** Native handle of {@link #sid}. */
+        final long id;
+        final PeerState state = new PeerState();
+        final OutboundQueue queue;
+        final NetStats.Peer stats = new NetStats.Peer();
+        final SendScheduler scheduler = new SendScheduler(SNet.this, this);
+        /** {@link Frames} features this peer understands. */
+        int features = SConfig.features();
+        /** One of the {@link Authenticator} states. */
+        int auth = Authenticator.unknown;
+        /** Whether an auth session was started with Steam and has to be ended. */
+        boolean authSession;
+        long authStarted;
+        /** Packets received while {@link #auth} is pending, or null. */
+        Seq<Packet> held;
+        /** When {@link #state} last showed an active or connecting session. */
+        long lastActive = Time.millis();
+        /** When the session dropped, if the peer may still resume, otherwise 0; see {@link Resumption}. */
+        long suspended;
+        /** Reliable messages held while suspended, in order, and their total size. */
+        Seq<Resumption.Held> missed;
+        int heldBytes;
 
         public SteamConnection(SteamID sid) {
             super(sid.getAccountID() + "");
             this.sid = sid;
+            this.id = sid.handle();
+            this.queue = new OutboundQueue(SNet.this, sid);
             Log.info("Create STEAM client @", sid.getAccountID());
         }
 
         @Override
         public void send(Object object, boolean reliable) {
+            ByteBuffer data = null;
+            //a broadcast keeps its buffer for the next recipient
+            boolean owned = false;
             try {
-                writeBuffer.limit(writeBuffer.capacity());
-                writeBuffer.position(0);
-                serializer.write(writeBuffer, object);
-                int length = writeBuffer.position();
-                writeBuffer.flip();
-
-                snet.sendP2PPacket(sid, writeBuffer,
-                        reliable  || length >= 1200 ? object instanceof StreamChunk ? P2PSend.ReliableWithBuffering : P2PSend.Reliable : P2PSend.UnreliableNoDelay,
-                        0);
+                if (broadcast.matches(object, reliable, this)) {
+                    //already serialized for an earlier recipient of this broadcast
+                    data = broadcast.data();
+                } else {
+                    broadcast.invalidate();
+                    data = serialize(object);
+                    if (broadcast.caching(this)) {
+                        broadcast.set(object, reliable, data);
+                    } else {
+                        owned = true;
+                    }
+                }
+
+                sendSerialized(data, object, reliable);
+            } catch (BufferOverflowException e) {
+                //the packet is at fault, not the peer
+                SNet.this.stats.sendFailures++;
+                Log.err("@ is too large to send to @.", object.getClass().getSimpleName(), address);
             } catch (Exception e) {
-                Log.err(e);
-                Log.info("Error sending packet. Disconnecting invalid client!");
-                close();
+                sendFailed(e);
+            } finally {
+                if (owned) buffers.release(data);
+            }
+        }
 
-                SteamConnection k = steamConnections.get(sid.getAccountID());
-                if (k != null) steamConnections.remove(sid.getAccountID());
+        /** Sends a packet that is already serialized into a flipped buffer, compressed if the peer agreed to it. @return its size in bytes as sent. */
+        int sendSerialized(ByteBuffer data, Object object, boolean reliable) throws SteamException {
+            //a broadcast is compressed once for every recipient
+            boolean shared = broadcast.holds(data);
+            ByteBuffer packed = null;
+            if ((features & Frames.featureCompression) != 0) packed = shared ? broadcast.compressed(SNet.this) : compress(data, object);
+
+            try {
+                ByteBuffer sent = packed != null ? packed : data;
+                int length = sent.remaining();
+                int channel = (features & Frames.featureChannels) != 0 ? Channels.of(reliable) : 0;
+
+                if (suspended != 0) {
+                    //snapshots are superseded by the ones after the peer is back
+                    if (reliable) resumption.hold(this, sent, channel, object instanceof StreamChunk ? P2PSend.ReliableWithBuffering : P2PSend.Reliable);
+                    return length;
+                }
+
+                //deferred packets are counted once they go out
+                if (!scheduler.admit(sent, object, reliable, channel)) return length;
+
+                SNet.this.stats.packetsOut++;
+                stats.packetsOut++;
+                stats.bytesOut += length;
+                sendPacket(sid, queue, features, sent, channel, reliable, object instanceof StreamChunk);
+                return length;
+            } finally {
+                if (packed != null && !shared) buffers.release(packed);
+            }
+        }
+
+        @Override
+        public void sendStream(Streamable stream) {
+            //paced by the streamer instead of queueing every chunk at once
+            streamer.begin(this, stream);
+        }
+
+        void flush() {
+            //what is queued waits for the peer to come back
+            if (suspended != 0) return;
+
+            try {
+                scheduler.flush();
+                if (!queue.isEmpty()) queue.flush();
+            } catch (Exception e) {
+                sendFailed(e);
             }
         }
 
+        void sendFailed(Exception e) {
+            SNet.this.stats.sendFailures++;
+            Log.err(e);
+            Log.info("Error sending packet. Disconnecting invalid client!");
+            close();
+        }
+
+        /**
+         * Reads the session state from Steam into {@link #state}. {@link SessionMonitor} and {@link WorldStreamer} call this,
+         * and {@link SendScheduler#flush} every tick while the connection is congested or holds deferred packets.
+         */
+        void refreshState() {
+            transport.getSessionState(sid, state);
+            if (state.active || state.connecting) lastActive = Time.millis();
+            scheduler.refreshed();
+        }
+
+        /** @return whether the session was active within {@link SConfig#sessionTimeout}, as of the last {@link #refreshState()}, or the peer may still resume. */
         @Override
         public boolean isConnected() {
-            snet.getP2PSessionState(sid, state);
-            return true;//state.isConnectionActive();
+            return suspended != 0 || Time.timeSinceMillis(lastActive) < SConfig.sessionTimeout;
         }
 
         @Override
@@ -1,26 +1,12 @@
 package space.shugen.MDTSteamLobbyPlugin;
 
-import com.codedisaster.steamworks.SteamAuth.AuthSessionResponse;
-import com.codedisaster.steamworks.SteamID;
-import com.codedisaster.steamworks.SteamResult;
 import com.codedisaster.steamworks.SteamUser;
-import com.codedisaster.steamworks.SteamUserCallback;
 
-public class SUser implements SteamUserCallback{
-    public final SteamUser user = new SteamUser(this);
-
-    @Override
-    public void onValidateAuthTicket(SteamID steamID, AuthSessionResponse authSessionResponse, SteamID ownerSteamID){
-
-    }
-
-    @Override
-    public void onMicroTxnAuthorization(int appID, long orderID, boolean authorized){
-
-    }
-
-    @Override
-    public void onEncryptedAppTicket(SteamResult result){
+/** The Steam user interface. It belongs to {@link SteamTransport}, so that auth callbacks reach {@link SNet}. */
+public class SUser{
+    public final SteamUser user;
 
+    public SUser(SteamUser user){
+        this.user = user;
     }
 }
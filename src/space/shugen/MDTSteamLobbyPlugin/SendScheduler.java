@@ -0,0 +1,181 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.ObjectMap;
+import arc.struct.Queue;
+import arc.struct.Seq;
+import com.codedisaster.steamworks.SteamException;
+import mindustry.net.Packet;
+import space.shugen.MDTSteamLobbyPlugin.SNet.SteamConnection;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Outbound priorities and byte budget of one Steam connection. Reliable packets and unreliable ones of high priority
+ * always go out, in order. Other unreliable packets only go out while the connection has spent less than
+ * {@link SConfig#sendBudget} bytes this tick and Steam holds less than {@link SConfig#congestionQueue} bytes for it.
+ * Otherwise snapshots ({@link Channels#isSnapshot}) are deferred by packet type: a newer tick's packets of a type replace
+ * the deferred ones, so a congested peer gets the latest state when there is room again instead of a growing backlog.
+ * Everything else, like effects and sounds, can't stand in for each other, so it waits in order in its own queue of at most
+ * {@link #maxQueued} packets. World data yields to the budget as well.
+ * Unused budget is not saved up; bytes over it are paid off in the next ticks. Game thread only.
+ */
+public class SendScheduler{
+    /** Ticks after which deferred packets are dropped even if nothing newer replaced them. */
+    static final int maxAge = 60;
+    /** Packets other than snapshots that may wait at a time; the oldest are dropped beyond that. */
+    static final int maxQueued = 256;
+
+    final SNet owner;
+    final SteamConnection con;
+    final ObjectMap<Class<?>, Deferred> deferred = new ObjectMap<>();
+    /** Deferred packets that aren't snapshots, oldest first. */
+    final Queue<Queued> queued = new Queue<>();
+    /** Bytes sent this tick, minus the budgets of earlier ticks that were exceeded. */
+    int spent;
+    boolean congested;
+
+    public SendScheduler(SNet owner, SteamConnection con){
+        this.owner = owner;
+        this.con = con;
+    }
+
+    /** @return whether the connection may send more this tick. */
+    public boolean hasRoom(){
+        return (SConfig.sendBudget <= 0 || spent < SConfig.sendBudget) && !congested;
+    }
+
+    /**
+     * Decides about a packet that is about to be sent, and counts it if it goes out now.
+     * @return false if the packet was deferred, and must not be sent.
+     */
+    public boolean admit(ByteBuffer data, Object object, boolean reliable, int channel){
+        int length = data.remaining();
+        int priority = object instanceof Packet ? ((Packet)object).getPriority() : Packet.priorityNormal;
+
+        boolean snapshot = !reliable && Channels.isSnapshot(object);
+
+        if(reliable || priority >= Packet.priorityHigh || hasRoom()){
+            //deferred packets of this type from an earlier tick are older than this one now
+            Deferred old = !snapshot || deferred.size == 0 ? null : deferred.get(object.getClass());
+            if(old != null && old.tick != owner.ticks){
+                drop(old);
+                deferred.remove(object.getClass());
+            }
+            spent += length;
+            return true;
+        }
+
+        byte[] bytes = new byte[length];
+        int position = data.position();
+        data.get(bytes);
+        data.position(position);
+
+        if(!snapshot){
+            if(queued.size >= maxQueued){
+                queued.removeFirst();
+                owner.stats.unreliableDropped++;
+            }
+            queued.addLast(new Queued(bytes, channel, owner.ticks));
+            owner.stats.unreliableDeferred++;
+            return false;
+        }
+
+        Deferred group = deferred.get(object.getClass());
+        if(group != null && group.tick != owner.ticks){
+            owner.stats.snapshotsDropped += group.packets.size;
+            group.packets.clear();
+        }else if(group == null){
+            deferred.put(object.getClass(), group = new Deferred());
+        }
+
+        //packets of one type sent in the same tick are parts of the same snapshot
+        group.tick = owner.ticks;
+        group.channel = channel;
+        group.packets.add(bytes);
+        owner.stats.snapshotsDeferred++;
+        return false;
+    }
+
+    /** End of the tick: sends deferred packets that fit, then starts the budget of the next tick. */
+    public void flush() throws SteamException{
+        //the queue of a congested peer is watched every tick, so it gets snapshots again as soon as it drains
+        if(deferred.size > 0 || queued.size > 0 || congested) con.refreshState();
+
+        //these are older than any snapshot that is still deferred
+        while(queued.size > 0){
+            Queued packet = queued.first();
+            if(owner.ticks - packet.tick > maxAge){
+                owner.stats.unreliableDropped++;
+            }else if(hasRoom()){
+                send(packet.bytes, packet.channel);
+            }else{
+                break;
+            }
+            queued.removeFirst();
+        }
+
+        Iterator<Deferred> it = deferred.values().iterator();
+        while(it.hasNext()){
+            Deferred group = it.next();
+            if(owner.ticks - group.tick > maxAge){
+                drop(group);
+                it.remove();
+            }else if(hasRoom()){
+                send(group);
+                it.remove();
+            }
+        }
+
+        spent = SConfig.sendBudget <= 0 ? 0 : Math.max(spent - SConfig.sendBudget, 0);
+    }
+
+    /** The connection read its session state from Steam. */
+    void refreshed(){
+        congested = SConfig.congestionQueue > 0 && con.state.bytesQueued >= SConfig.congestionQueue;
+    }
+
+    void send(Deferred group) throws SteamException{
+        for(byte[] packet : group.packets){
+            send(packet, group.channel);
+        }
+    }
+
+    void send(byte[] packet, int channel) throws SteamException{
+        ByteBuffer buffer = owner.buffers.acquire(packet.length);
+        try{
+            buffer.put(packet).flip();
+            spent += packet.length;
+            owner.stats.packetsOut++;
+            con.stats.packetsOut++;
+            con.stats.bytesOut += packet.length;
+            owner.sendPacket(con.sid, con.queue, con.features, buffer, channel, false, false);
+        }finally{
+            owner.buffers.release(buffer);
+        }
+    }
+
+    void drop(Deferred group){
+        if(group != null) owner.stats.snapshotsDropped += group.packets.size;
+    }
+
+    /** The latest deferred packets of one type. */
+    static class Deferred{
+        final Seq<byte[]> packets = new Seq<>();
+        long tick;
+        int channel;
+    }
+
+    /** A deferred packet that isn't a snapshot. */
+    static class Queued{
+        final byte[] bytes;
+        final int channel;
+        final long tick;
+
+        Queued(byte[] bytes, int channel, long tick){
+            this.bytes = bytes;
+            this.channel = channel;
+            this.tick = tick;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.ApplicationListener;
+import arc.util.Log;
+import arc.util.Time;
+import space.shugen.MDTSteamLobbyPlugin.SNet.SteamConnection;
+
+/**
+ * Refreshes the cached {@link PeerState} of every Steam connection once per {@link SConfig#sessionInterval},
+ * a few connections per tick, and closes connections whose session has been gone for {@link SConfig#sessionTimeout}.
+ * Runs on the game thread, so it can call into Mindustry without posting.
+ */
+public class SessionMonitor implements ApplicationListener{
+    final SNet owner;
+    /** Index of the next connection to refresh. */
+    int next;
+    /** Connections that are due but were not refreshed yet; fractional, so that small servers still get refreshed. */
+    float due;
+    long lastUpdate = Time.millis();
+
+    public SessionMonitor(SNet owner){
+        this.owner = owner;
+    }
+
+    @Override
+    public void update(){
+        SteamConnection[] cons = owner.connections.steam();
+        long now = Time.millis();
+        long elapsed = now - lastUpdate;
+        lastUpdate = now;
+
+        if(cons.length == 0){
+            due = 0;
+            return;
+        }
+
+        due = Math.min(due + (float)cons.length * elapsed / Math.max(SConfig.sessionInterval, 1), cons.length);
+        int count = (int)due;
+        due -= count;
+
+        for(int i = 0; i < count; i++){
+            SteamConnection con = cons[next++ % cons.length];
+            con.refreshState();
+
+            if(!con.isConnected()){
+                Log.info("Steam session of @ is gone, closing connection.", con.address);
+                owner.stats.reaped++;
+                con.close();
+            }
+        }
+        if(next >= cons.length) next = 0;
+    }
+}
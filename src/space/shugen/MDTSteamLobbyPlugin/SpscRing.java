@@ -0,0 +1,60 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.func.Prov;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue between exactly one producer thread and one consumer thread.
+ * Slots are allocated up front and reused: the producer fills the slot returned by {@link #claim()} and calls {@link #publish()},
+ * the consumer reads the slot returned by {@link #peek()} and calls {@link #release()}.
+ */
+public class SpscRing<T>{
+    final T[] slots;
+    final int mask;
+    /** Next slot to read; written by the consumer only. */
+    final AtomicLong head = new AtomicLong();
+    /** Next slot to write; written by the producer only. */
+    final AtomicLong tail = new AtomicLong();
+
+    /** @param capacity rounded up to a power of two. */
+    @SuppressWarnings("unchecked")
+    public SpscRing(int capacity, Prov<T> slot){
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = (T[])new Object[size];
+        mask = size - 1;
+        for(int i = 0; i < size; i++){
+            slots[i] = slot.get();
+        }
+    }
+
+    /** Producer side. @return the slot to fill, or null if the ring is full. */
+    public T claim(){
+        long t = tail.get();
+        return t - head.get() >= slots.length ? null : slots[(int)t & mask];
+    }
+
+    /** Producer side. Makes the slot returned by the last {@link #claim()} visible to the consumer. */
+    public void publish(){
+        tail.lazySet(tail.get() + 1);
+    }
+
+    /** Consumer side. @return the oldest published slot, or null if the ring is empty. */
+    public T peek(){
+        long h = head.get();
+        return h >= tail.get() ? null : slots[(int)h & mask];
+    }
+
+    /** Consumer side. Hands the slot returned by the last {@link #peek()} back to the producer. */
+    public void release(){
+        head.lazySet(head.get() + 1);
+    }
+
+    public boolean isFull(){
+        return tail.get() - head.get() >= slots.length;
+    }
+
+    public boolean isEmpty(){
+        return head.get() >= tail.get();
+    }
+}
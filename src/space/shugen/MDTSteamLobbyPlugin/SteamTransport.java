@@ -0,0 +1,178 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import com.codedisaster.steamworks.*;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyDistanceFilter;
+import com.codedisaster.steamworks.SteamMatchmaking.LobbyType;
+import com.codedisaster.steamworks.SteamNetworking.P2PSend;
+import com.codedisaster.steamworks.SteamNetworking.P2PSessionState;
+
+import java.nio.ByteBuffer;
+
+/** {@link P2PTransport} backed by the logged-in Steam client. */
+public class SteamTransport implements P2PTransport{
+    public final SteamNetworking snet;
+    public final SteamMatchmaking smat;
+    public final SteamFriends friends;
+    public final SteamUser user;
+
+    final SteamID from = new SteamID();
+    final P2PSessionState state = new P2PSessionState();
+    final int[] ticketSize = new int[1];
+    SteamAuthTicket ticket;
+
+    public SteamTransport(SNet owner){
+        snet = new SteamNetworking(owner);
+        smat = new SteamMatchmaking(owner);
+        friends = new SteamFriends(owner);
+        user = new SteamUser(owner);
+    }
+
+    @Override
+    public boolean send(SteamID to, ByteBuffer data, P2PSend mode, int channel) throws SteamException{
+        return snet.sendP2PPacket(to, data, mode, channel);
+    }
+
+    @Override
+    public int available(int channel){
+        return snet.isP2PPacketAvailable(channel);
+    }
+
+    @Override
+    public long read(ByteBuffer dest, int channel) throws SteamException{
+        int start = dest.position();
+        int length = snet.readP2PPacket(from, dest, channel);
+        dest.limit(start + length).position(start);
+        //a failed read leaves the sender of the previous message in place
+        return length == 0 ? -1 : from.handle();
+    }
+
+    @Override
+    public boolean acceptSession(SteamID peer){
+        return snet.acceptP2PSessionWithUser(peer);
+    }
+
+    @Override
+    public boolean closeSession(SteamID peer){
+        return snet.closeP2PSessionWithUser(peer);
+    }
+
+    @Override
+    public boolean getSessionState(SteamID peer, PeerState out){
+        if(!snet.getP2PSessionState(peer, state)){
+            out.reset();
+            return false;
+        }
+
+        out.active = state.isConnectionActive();
+        out.connecting = state.isConnecting();
+        out.relay = state.isUsingRelay();
+        out.bytesQueued = state.getBytesQueuedForSend();
+        out.packetsQueued = state.getPacketsQueuedForSend();
+        out.error = state.getLastSessionError();
+        return true;
+    }
+
+    @Override
+    public void createLobby(LobbyType type, int maxMembers){
+        smat.createLobby(type, maxMembers);
+    }
+
+    @Override
+    public void joinLobby(SteamID lobby){
+        smat.joinLobby(lobby);
+    }
+
+    @Override
+    public void leaveLobby(SteamID lobby){
+        smat.leaveLobby(lobby);
+    }
+
+    @Override
+    public void requestLobbyList(int maxResults, LobbyDistanceFilter distance){
+        smat.addRequestLobbyListResultCountFilter(maxResults);
+        if(distance != null) smat.addRequestLobbyListDistanceFilter(distance);
+        smat.requestLobbyList();
+    }
+
+    @Override
+    public SteamID getLobbyByIndex(int index){
+        return smat.getLobbyByIndex(index);
+    }
+
+    @Override
+    public String getLobbyData(SteamID lobby, String key){
+        return smat.getLobbyData(lobby, key);
+    }
+
+    @Override
+    public boolean setLobbyData(SteamID lobby, String key, String value){
+        return smat.setLobbyData(lobby, key, value);
+    }
+
+    @Override
+    public void setLobbyType(SteamID lobby, LobbyType type){
+        smat.setLobbyType(lobby, type);
+    }
+
+    @Override
+    public void setLobbyMemberLimit(SteamID lobby, int limit){
+        smat.setLobbyMemberLimit(lobby, limit);
+    }
+
+    @Override
+    public int getNumLobbyMembers(SteamID lobby){
+        return smat.getNumLobbyMembers(lobby);
+    }
+
+    @Override
+    public int getLobbyMemberLimit(SteamID lobby){
+        return smat.getLobbyMemberLimit(lobby);
+    }
+
+    @Override
+    public SteamID getLobbyOwner(SteamID lobby){
+        return smat.getLobbyOwner(lobby);
+    }
+
+    @Override
+    public SteamID localUser(){
+        return user.getSteamID();
+    }
+
+    @Override
+    public void dispose(){
+        snet.dispose();
+        smat.dispose();
+        friends.dispose();
+        user.dispose();
+    }
+
+    @Override
+    public boolean getAuthTicket(ByteBuffer dest) throws SteamException{
+        int start = dest.position();
+        SteamAuthTicket created = user.getAuthSessionTicket(dest, ticketSize);
+        if(created == null || !created.isValid()) return false;
+
+        ticket = created;
+        dest.limit(start + ticketSize[0]).position(start);
+        return true;
+    }
+
+    @Override
+    public void cancelAuthTickets(){
+        if(ticket != null){
+            user.cancelAuthTicket(ticket);
+            ticket = null;
+        }
+    }
+
+    @Override
+    public SteamAuth.BeginAuthSessionResult beginAuthSession(ByteBuffer ticket, SteamID peer) throws SteamException{
+        return user.beginAuthSession(ticket, peer);
+    }
+
+    @Override
+    public void endAuthSession(SteamID peer){
+        user.endAuthSession(peer);
+    }
+}
@@ -0,0 +1,148 @@
+package space.shugen.MDTSteamLobbyPlugin;
+
+import arc.struct.Seq;
+import mindustry.net.Net;
+import mindustry.net.Packets.StreamBegin;
+import mindustry.net.Packets.StreamChunk;
+import mindustry.net.Streamable;
+import space.shugen.MDTSteamLobbyPlugin.SNet.SteamConnection;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Sends {@link Streamable}s, mostly world data for joining players, a few chunks per tick instead of all at once.
+ * A transfer only gets more chunks while the Steam send queue of its peer holds less than {@link SConfig#streamWindow} bytes,
+ * and all transfers together send at most {@link SConfig#streamBudget} bytes per tick, so simultaneous joins can't flood Steam.
+ * A peer's own {@link SendScheduler} budget has to have room too, so world data never crowds out its snapshots.
+ * Transfers with identical content share one copy of the data.
+ */
+public class WorldStreamer{
+    final SNet owner;
+    final Seq<Transfer> transfers = new Seq<>();
+    /** Reused for every chunk; the data is copied when it is serialized. */
+    final StreamChunk chunk = new StreamChunk();
+    byte[] chunkData = {};
+    /** Transfer that gets the first chunk next tick, so that no peer is always served last. */
+    int first;
+
+    public WorldStreamer(SNet owner){
+        this.owner = owner;
+    }
+
+    /** Announces a stream to a peer right away and queues its data. Replaces any transfer to that peer that is still running. */
+    public void begin(SteamConnection con, Streamable stream){
+        cancel(con);
+
+        byte[] data = new byte[stream.stream.available()];
+        stream.stream.read(data, 0, data.length);
+
+        StreamBegin begin = new StreamBegin();
+        begin.total = data.length;
+        begin.type = Net.getPacketId(stream);
+        con.send(begin, true);
+
+        transfers.add(new Transfer(con, begin.id, share(data)));
+    }
+
+    /** @return the data of a running transfer with the same content, or the argument if there is none. */
+    byte[] share(byte[] data){
+        for(Transfer transfer : transfers){
+            if(transfer.data.length == data.length && Arrays.equals(transfer.data, data)) return transfer.data;
+        }
+        return data;
+    }
+
+    public void cancel(SteamConnection con){
+        for(int i = transfers.size - 1; i >= 0; i--){
+            if(transfers.get(i).con == con) transfers.remove(i);
+        }
+    }
+
+    /** @return whether a transfer to the connection is running. */
+    public boolean streaming(SteamConnection con){
+        for(Transfer transfer : transfers){
+            if(transfer.con == con) return true;
+        }
+        return false;
+    }
+
+    public boolean isEmpty(){
+        return transfers.isEmpty();
+    }
+
+    /** Sends the chunks that fit in this tick. Must be called before the outbound queues are flushed. */
+    public void update(){
+        if(transfers.isEmpty()) return;
+
+        for(Transfer transfer : transfers){
+            transfer.con.refreshState();
+            transfer.inFlight = transfer.con.state.bytesQueued;
+        }
+
+        int chunkSize = Math.max(1, SConfig.streamChunkSize);
+        int budget = SConfig.streamBudget;
+        boolean progress = true;
+
+        //one chunk per transfer and round, so that every peer gets its share of the budget
+        while(budget > 0 && progress){
+            progress = false;
+            for(int i = 0; i < transfers.size && budget > 0; i++){
+                Transfer transfer = transfers.get((first + i) % transfers.size);
+                if(transfer.done() || transfer.inFlight >= SConfig.streamWindow || !transfer.con.scheduler.hasRoom()) continue;
+
+                int sent = send(transfer, chunkSize);
+                transfer.inFlight += sent;
+                budget -= sent;
+                progress = true;
+            }
+        }
+
+        for(int i = transfers.size - 1; i >= 0; i--){
+            if(transfers.get(i).done()) transfers.remove(i);
+        }
+        first = transfers.isEmpty() ? 0 : (first + 1) % transfers.size;
+    }
+
+    int send(Transfer transfer, int chunkSize){
+        int length = Math.min(chunkSize, transfer.data.length - transfer.offset);
+        if(chunkData.length != length) chunkData = new byte[length];
+        System.arraycopy(transfer.data, transfer.offset, chunkData, 0, length);
+        transfer.offset += length;
+
+        chunk.id = transfer.id;
+        chunk.data = chunkData;
+
+        ByteBuffer data = null;
+        try{
+            data = owner.serialize(chunk);
+            return transfer.con.sendSerialized(data, chunk, true);
+        }catch(Exception e){
+            //closing the connection cancels the transfer
+            transfer.offset = transfer.data.length;
+            transfer.con.sendFailed(e);
+            return length;
+        }finally{
+            if(data != null) owner.buffers.release(data);
+        }
+    }
+
+    static class Transfer{
+        final SteamConnection con;
+        final int id;
+        final byte[] data;
+        int offset;
+        /** Bytes queued in Steam for this peer, plus what was sent since they were read. */
+        int inFlight;
+
+        Transfer(SteamConnection con, int id, byte[] data){
+            this.con = con;
+            this.id = id;
+            this.data = data;
+        }
+
+        boolean done(){
+            return offset >= data.length;
+        }
+    }
+}